@@ -32,14 +32,20 @@ import cell.util.Utils;
 import cell.util.log.Logger;
 import cube.auth.AuthToken;
 import cube.client.aigc.AIGCController;
+import cube.client.file.DigestCache;
+import cube.client.file.DownloadCache;
+import cube.client.file.FileLabelCache;
 import cube.client.file.FileProcessor;
 import cube.client.file.FileStorage;
 import cube.client.file.FileUploader;
+import cube.client.file.HLSSegmentCache;
+import cube.client.file.LocalFileStore;
 import cube.client.hub.HubController;
 import cube.client.listener.ContactListener;
 import cube.client.message.MessageService;
 import cube.client.robot.RobotController;
 import cube.client.tool.TokenHelper;
+import cube.client.util.BandwidthShaper;
 import cube.common.action.ClientAction;
 import cube.common.action.ContactAction;
 import cube.common.entity.*;
@@ -103,6 +109,16 @@ public class Client {
 
     protected File filePath;
 
+    protected LocalFileStore fileStore;
+
+    protected DigestCache digestCache;
+
+    protected DownloadCache downloadCache;
+
+    protected FileLabelCache fileLabelCache;
+
+    protected BandwidthShaper bandwidthShaper;
+
     /**
      * 构造函数。
      *
@@ -137,6 +153,23 @@ public class Client {
             this.filePath.mkdirs();
         }
 
+        // 本地文件存储，不管理机器人脚本目录和索引目录
+        this.fileStore = new LocalFileStore(this.filePath);
+        this.fileStore.exclude("robot");
+        this.fileStore.exclude("index");
+        this.fileStore.exclude(HLSSegmentCache.DIRECTORY);
+        this.fileStore.rebuildAsync();
+
+        this.digestCache = new DigestCache(new File(this.filePath, "index/digest.idx"));
+
+        this.downloadCache = new DownloadCache(this.filePath);
+        this.downloadCache.setDigestCache(this.digestCache);
+        this.downloadCache.setFileStore(this.fileStore);
+
+        this.fileLabelCache = new FileLabelCache();
+
+        this.bandwidthShaper = new BandwidthShaper();
+
         this.connector = new Connector(address, port);
         this.receiver = new Receiver(this);
 
@@ -222,16 +255,57 @@ public class Client {
         Logger.i(this.getClass(), "Set session id: " + sessionId);
     }
 
+    /**
+     * 销毁客户端。最多等待 30 秒以完成正在进行的任务。
+     */
+    public void destroy() {
+        this.destroy(30 * 1000);
+    }
+
     /**
      * 销毁客户端。
+     * 客户端先停止接收新的上传任务和数据流，然后在指定时长内等待正在进行的上传、数据流和通知器完成。
+     *
+     * @param timeout 指定等待任务完成的最大时长，单位：毫秒。
+     * @return 返回排空报告，记录超时被放弃的任务。
      */
-    public synchronized void destroy() {
+    public synchronized DrainReport destroy(long timeout) {
+        long start = System.currentTimeMillis();
+        long deadline = start + timeout;
+
         if (null != this.timer) {
             this.timer.cancel();
             this.timer = null;
         }
 
+        // 停止接收新任务
+        if (null != this.messageService && null != this.messageService.getAttachmentPrefetcher()) {
+            this.messageService.getAttachmentPrefetcher().close();
+        }
+        if (null != this.uploader) {
+            this.uploader.close();
+        }
         if (null != this.receiver) {
+            this.receiver.close();
+        }
+        if (null != this.processor) {
+            this.processor.close();
+        }
+
+        // 所有任务共享同一个截止时间
+        List<String> uploads = null;
+        List<String> streams = null;
+        List<Long> notifiers = null;
+
+        if (null != this.uploader) {
+            uploads = this.uploader.awaitUploads(deadline);
+            this.uploader.destroy();
+        }
+
+        if (null != this.receiver) {
+            streams = this.receiver.awaitStreams(deadline);
+            notifiers = this.receiver.awaitNotifiers(deadline);
+
             this.receiver.destroy();
             this.receiver = null;
         }
@@ -241,6 +315,14 @@ public class Client {
             this.connector.destroy();
             this.connector = null;
         }
+
+        this.digestCache.close();
+
+        DrainReport report = new DrainReport(uploads, streams, notifiers, System.currentTimeMillis() - start);
+        if (!report.isClean()) {
+            Logger.w(this.getClass(), "#destroy - Abandoned tasks : " + report.toString());
+        }
+        return report;
     }
 
     /**
@@ -280,6 +362,51 @@ public class Client {
         return this.filePath;
     }
 
+    /**
+     * 返回本地文件存储。
+     *
+     * @return 返回本地文件存储。
+     */
+    public LocalFileStore getFileStore() {
+        return this.fileStore;
+    }
+
+    /**
+     * 返回文件摘要缓存。
+     *
+     * @return 返回文件摘要缓存。
+     */
+    public DigestCache getDigestCache() {
+        return this.digestCache;
+    }
+
+    /**
+     * 返回下载缓存。
+     *
+     * @return 返回下载缓存。
+     */
+    public DownloadCache getDownloadCache() {
+        return this.downloadCache;
+    }
+
+    /**
+     * 返回文件标签缓存。
+     *
+     * @return 返回文件标签缓存。
+     */
+    public FileLabelCache getFileLabelCache() {
+        return this.fileLabelCache;
+    }
+
+    /**
+     * 返回上传带宽整形器。
+     *
+     * @return 返回上传带宽整形器。
+     */
+    public BandwidthShaper getBandwidthShaper() {
+        return this.bandwidthShaper;
+    }
+
     /**
      * 是否已就绪。
      *
@@ -406,7 +533,9 @@ public class Client {
      */
     public FileUploader getFileUploader() {
         if (null == this.uploader) {
-            this.uploader = new FileUploader(this.connector);
+            this.uploader = new FileUploader(this.connector, this.receiver);
+            this.uploader.setDigestCache(this.digestCache);
+            this.uploader.setBandwidthShaper(this.bandwidthShaper);
         }
 
         return this.uploader;
@@ -419,7 +548,12 @@ public class Client {
      */
     public FileProcessor getFileProcessor() {
         if (null == this.processor) {
-            this.processor = new FileProcessor(this.filePath, this.connector, this.receiver);
+            this.processor = new FileProcessor(this.filePath, this.connector, this.receiver,
+                    this.getFileUploader());
+            this.processor.setFileStore(this.fileStore);
+            this.processor.setDigestCache(this.digestCache);
+            this.processor.setDownloadCache(this.downloadCache);
+            this.processor.setFileLabelCache(this.fileLabelCache);
         }
 
         if (null != this.pretender) {
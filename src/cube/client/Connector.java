@@ -112,6 +112,7 @@ public class Connector {
         actionDialect.addParam(Notifier.ParamName, notifier.toJSON());
 
         if (!this.nucleus.getTalkService().speak(Client.NAME, actionDialect)) {
+            notifier.abandon();
             return null;
         }
 
@@ -132,6 +133,7 @@ public class Connector {
         actionDialect.addParam(Notifier.ParamName, notifier.toJSON());
 
         if (!this.nucleus.getTalkService().speak(celletName, actionDialect)) {
+            notifier.abandon();
             return null;
         }
 
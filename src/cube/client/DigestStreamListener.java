@@ -0,0 +1,47 @@
+/*
+ * This source file is part of Cube.
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2023 Cube Team.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cube.client;
+
+import cube.client.file.FileDigest;
+
+import java.io.File;
+
+/**
+ * 需要数据流摘要的流监听器。
+ * 接收器在写入文件的同时计算数据摘要，流完成时回调带摘要的方法，不再回调 {@link #onCompleted(String, File)} 。
+ */
+public interface DigestStreamListener extends StreamListener {
+
+    /**
+     * 流已传输完成。
+     *
+     * @param streamName
+     * @param streamFile
+     * @param digest 写入数据的摘要，计算失败时为 {@code null} 值。
+     */
+    void onCompleted(String streamName, File streamFile, FileDigest digest);
+}
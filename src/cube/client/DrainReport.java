@@ -0,0 +1,108 @@
+/*
+ * This source file is part of Cube.
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2023 Cube Team.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cube.client;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 客户端关闭时的排空报告，记录截止时仍未完成而被放弃的任务。
+ */
+public class DrainReport {
+
+    private final List<String> abandonedUploads;
+
+    private final List<String> abandonedStreams;
+
+    private final List<Long> abandonedNotifiers;
+
+    private final long elapsed;
+
+    public DrainReport(List<String> abandonedUploads, List<String> abandonedStreams,
+                       List<Long> abandonedNotifiers, long elapsed) {
+        this.abandonedUploads = (null != abandonedUploads) ? abandonedUploads : new ArrayList<>();
+        this.abandonedStreams = (null != abandonedStreams) ? abandonedStreams : new ArrayList<>();
+        this.abandonedNotifiers = (null != abandonedNotifiers) ? abandonedNotifiers : new ArrayList<>();
+        this.elapsed = elapsed;
+    }
+
+    /**
+     * 获取被放弃的上传任务的文件码列表。
+     *
+     * @return 返回文件码列表。
+     */
+    public List<String> getAbandonedUploads() {
+        return this.abandonedUploads;
+    }
+
+    /**
+     * 获取被放弃的数据流名称列表。
+     *
+     * @return 返回流名称列表。
+     */
+    public List<String> getAbandonedStreams() {
+        return this.abandonedStreams;
+    }
+
+    /**
+     * 获取被放弃的通知器序号列表。
+     *
+     * @return 返回通知器序号列表。
+     */
+    public List<Long> getAbandonedNotifiers() {
+        return this.abandonedNotifiers;
+    }
+
+    /**
+     * 获取排空耗时。
+     *
+     * @return 返回排空耗时，单位：毫秒。
+     */
+    public long getElapsed() {
+        return this.elapsed;
+    }
+
+    /**
+     * 是否所有任务都已在截止时间前完成。
+     *
+     * @return 如果没有被放弃的任务返回 {@code true} 。
+     */
+    public boolean isClean() {
+        return this.abandonedUploads.isEmpty() && this.abandonedStreams.isEmpty()
+                && this.abandonedNotifiers.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buf = new StringBuilder();
+        buf.append("elapsed: ").append(this.elapsed).append(" ms");
+        buf.append(", uploads: ").append(this.abandonedUploads);
+        buf.append(", streams: ").append(this.abandonedStreams);
+        buf.append(", notifiers: ").append(this.abandonedNotifiers);
+        return buf.toString();
+    }
+}
@@ -41,8 +41,23 @@ public class Notifier {
 
     public final long sn;
 
+    /**
+     * 等待应答的超时时长。
+     */
+    private final static long TIMEOUT = 2 * 60 * 1000;
+
     private ActionDialect response;
 
+    /**
+     * 是否已结束。
+     */
+    private boolean done = false;
+
+    /**
+     * 注入该通知器的接收器。
+     */
+    protected Receiver receiver;
+
     public Notifier() {
         this.sn = Utils.generateSerialNumber();
     }
@@ -54,13 +69,25 @@ public class Notifier {
      */
     public ActionDialect waiting() {
         synchronized (this) {
-            try {
-                this.wait(2 * 60 * 1000);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+            long deadline = System.currentTimeMillis() + TIMEOUT;
+            while (!this.done) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+
+                try {
+                    this.wait(remaining);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                    break;
+                }
             }
         }
 
+        // 超时的通知器也需要从接收器移除
+        this.release();
+
         return this.response;
     }
 
@@ -70,13 +97,36 @@ public class Notifier {
      * @param data 由服务器带回的数据。
      */
     public void over(ActionDialect data) {
-        this.response = data;
-
         synchronized (this) {
+            this.response = data;
+            this.done = true;
             this.notifyAll();
         }
     }
 
+    /**
+     * 放弃当前通知，用于请求未能发出的情况。
+     */
+    public void abandon() {
+        this.over(null);
+        this.release();
+    }
+
+    /**
+     * 通知器是否已结束。
+     *
+     * @return 如果已收到应答或已被放弃返回 {@code true} 。
+     */
+    public synchronized boolean isDone() {
+        return this.done;
+    }
+
+    private void release() {
+        if (null != this.receiver) {
+            this.receiver.release(this);
+        }
+    }
+
     /**
      * 判断 JSON 数据是否与该通知器一致。
      *
@@ -34,10 +34,13 @@ import cell.core.talk.TalkError;
 import cell.core.talk.dialect.ActionDialect;
 import cell.core.talk.dialect.DialectFactory;
 import cell.util.log.Logger;
+import cube.client.file.LocalFileStore;
+import cube.client.file.StreamDigester;
 import cube.client.hub.HubController;
 import cube.client.listener.MessageReceiveListener;
 import cube.client.listener.MessageSendListener;
 import cube.client.listener.WorkflowListener;
+import cube.client.message.AttachmentPrefetcher;
 import cube.client.robot.RobotController;
 import cube.common.action.ClientAction;
 import cube.common.entity.Contact;
@@ -52,6 +55,7 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -80,6 +84,13 @@ public class Receiver implements TalkListener {
 
     private final AtomicBoolean logined = new AtomicBoolean(false);
 
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    /**
+     * 用于通知流、通知器结束的监视器。
+     */
+    private final Object drainMonitor = new Object();
+
     private ConcurrentMap<Long, Notifier> notifiers;
 
     private Map<String, AtomicLong> receivingStreamMap;
@@ -88,6 +99,8 @@ public class Receiver implements TalkListener {
 
     private Map<String, StreamListener> streamListenerMap;
 
+    private Map<String, StreamSink> streamSinkMap;
+
     private Map<String, List<ActionListener>> actionListenerMap;
 
     public Receiver(Client client) {
@@ -96,31 +109,98 @@ public class Receiver implements TalkListener {
         this.receivingStreamMap = new ConcurrentHashMap<>();
         this.executor = Executors.newCachedThreadPool();
         this.streamListenerMap = new ConcurrentHashMap<>();
+        this.streamSinkMap = new ConcurrentHashMap<>();
         this.actionListenerMap = new ConcurrentHashMap<>();
     }
 
     /**
-     * 销毁接收器。
+     * 停止接收新的数据流。已注册监听器的数据流属于进行中的任务，仍会被接收。
      */
-    public void destroy() {
-        long start = System.currentTimeMillis();
-        while (!this.receivingStreamMap.isEmpty()) {
-            try {
-                Thread.sleep(100);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+    public void close() {
+        this.closed.set(true);
+    }
+
+    /**
+     * 等待正在接收的数据流以及已注册监听器的数据流完成。
+     *
+     * @param deadline 指定截止时间戳。
+     * @return 返回截止时仍未完成的流名称列表。
+     */
+    public List<String> awaitStreams(long deadline) {
+        synchronized (this.drainMonitor) {
+            while (!this.receivingStreamMap.isEmpty() || !this.streamListenerMap.isEmpty()
+                    || !this.streamSinkMap.isEmpty()) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+
+                try {
+                    this.drainMonitor.wait(remaining);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                    break;
+                }
             }
+        }
 
-            if (System.currentTimeMillis() - start > 30000) {
-                break;
+        List<String> result = new ArrayList<>(this.receivingStreamMap.keySet());
+        for (String streamName : this.streamListenerMap.keySet()) {
+            if (!result.contains(streamName)) {
+                result.add(streamName);
             }
         }
+        for (String streamName : this.streamSinkMap.keySet()) {
+            if (!result.contains(streamName)) {
+                result.add(streamName);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 等待所有通知器结束。
+     *
+     * @param deadline 指定截止时间戳。
+     * @return 返回截止时仍未结束的通知器序号列表。
+     */
+    public List<Long> awaitNotifiers(long deadline) {
+        synchronized (this.drainMonitor) {
+            while (!this.notifiers.isEmpty()) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+
+                try {
+                    this.drainMonitor.wait(remaining);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                    break;
+                }
+            }
+        }
+
+        return new ArrayList<>(this.notifiers.keySet());
+    }
+
+    /**
+     * 销毁接收器。未结束的通知器将被立即结束。
+     */
+    public void destroy() {
+        this.closed.set(true);
 
         for (Notifier notifier : this.notifiers.values()) {
             notifier.over(null);
         }
+        this.notifiers.clear();
 
-        this.executor.shutdown();
+        if (this.receivingStreamMap.isEmpty()) {
+            this.executor.shutdown();
+        }
+        else {
+            this.executor.shutdownNow();
+        }
     }
 
     /**
@@ -155,7 +235,7 @@ public class Receiver implements TalkListener {
 
     public void setStreamListener(String streamName, StreamListener listener) {
         if (null == listener) {
-            this.streamListenerMap.remove(streamName);
+            this.removeStreamListener(streamName);
             return;
         }
 
@@ -167,7 +247,35 @@ public class Receiver implements TalkListener {
      * @param streamName
      */
     public void removeStreamListener(String streamName) {
-        this.streamListenerMap.remove(streamName);
+        if (null != this.streamListenerMap.remove(streamName)) {
+            this.signalDrain();
+        }
+    }
+
+    /**
+     * 设置指定流的接收端。流数据将直接写入接收端，不再写入本地文件。
+     *
+     * @param streamName
+     * @param sink
+     */
+    public void setStreamSink(String streamName, StreamSink sink) {
+        if (null == sink) {
+            this.removeStreamSink(streamName);
+            return;
+        }
+
+        this.streamSinkMap.put(streamName, sink);
+    }
+
+    /**
+     * 移除指定流的接收端。
+     *
+     * @param streamName
+     */
+    public void removeStreamSink(String streamName) {
+        if (null != this.streamSinkMap.remove(streamName)) {
+            this.signalDrain();
+        }
     }
 
     /**
@@ -212,6 +320,7 @@ public class Receiver implements TalkListener {
      * @param notifier
      */
     public void inject(Notifier notifier) {
+        notifier.receiver = this;
         this.notifiers.put(notifier.sn, notifier);
     }
 
@@ -222,10 +331,27 @@ public class Receiver implements TalkListener {
      */
     public Notifier inject() {
         Notifier notifier = new Notifier();
-        this.notifiers.put(notifier.sn, notifier);
+        this.inject(notifier);
         return notifier;
     }
 
+    /**
+     * 移除已结束的通知器。
+     *
+     * @param notifier
+     */
+    protected void release(Notifier notifier) {
+        if (null != this.notifiers.remove(notifier.sn)) {
+            this.signalDrain();
+        }
+    }
+
+    private void signalDrain() {
+        synchronized (this.drainMonitor) {
+            this.drainMonitor.notifyAll();
+        }
+    }
+
     @Override
     public void onListened(Speakable speakable, String cellet, Primitive primitive) {
         if (Client.NAME.equals(cellet)) {
@@ -331,13 +457,13 @@ public class Receiver implements TalkListener {
                 MessageReceiveListener listener = this.client.getMessageService().getMessageReceiveListener(
                         contact.getLong("id"), contact.getString("domain"));
                 if (null != listener) {
-                    listener.onReceived(new Message(data.getJSONObject("message")));
+                    this.dispatchMessage(listener, new Message(data.getJSONObject("message")));
                 }
             }
             else if (data.has("group")) {
                 MessageReceiveListener listener = this.client.getMessageService().getMessageReceiveListener(new Group(data.getJSONObject("group")));
                 if (null != listener) {
-                    listener.onReceived(new Message(data.getJSONObject("message")));
+                    this.dispatchMessage(listener, new Message(data.getJSONObject("message")));
                 }
             }
         }
@@ -386,6 +512,21 @@ public class Receiver implements TalkListener {
         }
     }
 
+    /**
+     * 回调消息监听器，需要时先开始预取消息附件。
+     *
+     * @param listener
+     * @param message
+     */
+    private void dispatchMessage(MessageReceiveListener listener, Message message) {
+        AttachmentPrefetcher prefetcher = this.client.getMessageService().getAttachmentPrefetcher();
+        if (null != prefetcher) {
+            prefetcher.prefetch(message);
+        }
+
+        listener.onReceived(message);
+    }
+
     /**
      * 处理同步通知器。
      *
@@ -398,6 +539,7 @@ public class Receiver implements TalkListener {
         Notifier notifier = this.notifiers.remove(sn);
         if (null != notifier) {
             notifier.over(actionDialect);
+            this.signalDrain();
         }
     }
 
@@ -408,8 +550,31 @@ public class Receiver implements TalkListener {
             Logger.d(this.getClass(), "#onListened - Input Stream : " + cellet + " - " + primitiveInputStream.getName());
         }
 
+        StreamSink sink = this.streamSinkMap.get(primitiveInputStream.getName());
+
+        if (this.closed.get() && null == sink
+                && !this.streamListenerMap.containsKey(primitiveInputStream.getName())) {
+            // 已停止接收新的数据流
+            Logger.w(this.getClass(), "#onListened - Receiver is closed, discard stream : " + primitiveInputStream.getName());
+            try {
+                primitiveInputStream.close();
+            } catch (IOException e) {
+            }
+            return;
+        }
+
         this.receivingStreamMap.put(primitiveInputStream.getName(), new AtomicLong(System.currentTimeMillis()));
 
+        if (null != sink) {
+            this.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    transferToSink(primitiveInputStream, sink);
+                }
+            });
+            return;
+        }
+
         this.executor.execute(new Runnable() {
             @Override
             public void run() {
@@ -425,6 +590,13 @@ public class Receiver implements TalkListener {
                     targetFile.delete();
                 }
 
+                // 写入及回调期间固定文件，避免被淘汰
+                LocalFileStore fileStore = client.getFileStore();
+                fileStore.pin(targetFile);
+
+                // 需要摘要时在写入的同时计算摘要
+                StreamDigester digester = (listener instanceof DigestStreamListener) ? new StreamDigester() : null;
+
                 FileOutputStream fos = null;
                 byte[] bytes = new byte[4096];
                 int length = 0;
@@ -433,6 +605,10 @@ public class Receiver implements TalkListener {
 
                     while (((length = primitiveInputStream.read(bytes)) > 0)) {
                         fos.write(bytes, 0, length);
+
+                        if (null != digester) {
+                            digester.update(bytes, 0, length);
+                        }
                     }
 
                     primitiveInputStream.close();
@@ -440,6 +616,8 @@ public class Receiver implements TalkListener {
                     e.printStackTrace();
                 } catch (IOException e) {
                     e.printStackTrace();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
                 } finally {
                     if (null != fos) {
                         try {
@@ -451,13 +629,67 @@ public class Receiver implements TalkListener {
 
                 receivingStreamMap.remove(primitiveInputStream.getName());
 
-                if (null != listener) {
-                    listener.onCompleted(primitiveInputStream.getName(), targetFile);
+                fileStore.record(targetFile);
+
+                try {
+                    if (null != digester) {
+                        ((DigestStreamListener) listener).onCompleted(primitiveInputStream.getName(), targetFile,
+                                digester.finish(60 * 1000));
+                    }
+                    else if (null != listener) {
+                        listener.onCompleted(primitiveInputStream.getName(), targetFile);
+                    }
+                } finally {
+                    fileStore.unpin(targetFile);
                 }
+
+                signalDrain();
             }
         });
     }
 
+    /**
+     * 将数据流写入接收端。
+     *
+     * @param inputStream
+     * @param sink
+     */
+    private void transferToSink(PrimitiveInputStream inputStream, StreamSink sink) {
+        String streamName = inputStream.getName();
+        long size = 0;
+        IOException error = null;
+
+        try {
+            OutputStream output = sink.getOutputStream(streamName);
+            byte[] bytes = new byte[4096];
+            int length = 0;
+            while ((length = inputStream.read(bytes)) > 0) {
+                output.write(bytes, 0, length);
+                size += length;
+            }
+            output.flush();
+        } catch (IOException e) {
+            error = e;
+        } finally {
+            try {
+                inputStream.close();
+            } catch (IOException e) {
+            }
+        }
+
+        this.receivingStreamMap.remove(streamName);
+
+        if (null == error) {
+            sink.onCompleted(streamName, size);
+        }
+        else {
+            Logger.w(this.getClass(), "#transferToSink - Transfer failed : " + streamName, error);
+            sink.onFailed(streamName, error);
+        }
+
+        this.signalDrain();
+    }
+
     @Override
     public void onSpoke(Speakable speakable, String cellet, Primitive primitive) {
         // Nothing
@@ -0,0 +1,62 @@
+/*
+ * This source file is part of Cube.
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2023 Cube Team.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cube.client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * 流数据接收端。
+ * 注册了接收端的数据流直接写入接收端提供的输出流，不写入本地文件。
+ */
+public interface StreamSink {
+
+    /**
+     * 获取流数据的输出流。接收器不会关闭该输出流。
+     *
+     * @param streamName
+     * @return
+     * @throws IOException
+     */
+    OutputStream getOutputStream(String streamName) throws IOException;
+
+    /**
+     * 流已全部写入输出流。
+     *
+     * @param streamName
+     * @param size 写入的数据长度。
+     */
+    void onCompleted(String streamName, long size);
+
+    /**
+     * 流接收或写入失败。
+     *
+     * @param streamName
+     * @param exception
+     */
+    void onFailed(String streamName, IOException exception);
+}
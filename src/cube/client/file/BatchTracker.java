@@ -0,0 +1,230 @@
+/*
+ * This source file is part of Cube.
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2023 Cube Team.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cube.client.file;
+
+import cube.common.entity.FileLabel;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 批量任务的完成记录。
+ * 每个文件只计入一次完成或失败，所有文件结束时只结束一次。
+ * 不保留结果时文件标签仅交给监听器，保留结果时最多缓存指定数量的文件标签，
+ * 缓存已满时完成的文件等待调用者取出或者任务被取消。
+ *
+ * @param <K> 文件的标识类型。
+ */
+class BatchTracker<K> {
+
+    /**
+     * 默认缓存的文件标签数量。
+     */
+    protected final static int DEFAULT_RETENTION = 256;
+
+    private final int total;
+
+    private final Runnable finisher;
+
+    private final BlockingQueue<FileLabel> completedQueue;
+
+    private final Set<K> settledKeys = ConcurrentHashMap.newKeySet();
+
+    private final Map<K, Throwable> failures = new ConcurrentHashMap<>();
+
+    private final AtomicInteger completedCount = new AtomicInteger(0);
+
+    private final AtomicInteger failedCount = new AtomicInteger(0);
+
+    private final AtomicBoolean cancelled = new AtomicBoolean(false);
+
+    private final AtomicBoolean finished = new AtomicBoolean(false);
+
+    /**
+     * 结束处理是否已经执行完毕。
+     */
+    private volatile boolean done = false;
+
+    /**
+     * 构造函数。
+     *
+     * @param total 文件总数。
+     * @param retention 缓存的文件标签数量，为 {@code 0} 时不保留结果。
+     * @param finisher 所有文件结束时执行一次。
+     */
+    protected BatchTracker(int total, int retention, Runnable finisher) {
+        this.total = total;
+        this.finisher = finisher;
+        this.completedQueue = (retention > 0) ? new ArrayBlockingQueue<>(retention) : null;
+    }
+
+    /**
+     * 标记文件已结束。
+     *
+     * @param key 文件标识。
+     * @return 首次标记时返回 {@code true} ，文件已经计入过时返回 {@code false} 。
+     */
+    protected boolean settle(K key) {
+        return this.settledKeys.add(key);
+    }
+
+    /**
+     * 计入完成的文件。需要先调用 {@link #settle(Object)} 。
+     *
+     * @param fileLabel 文件标签。
+     */
+    protected void completed(FileLabel fileLabel) {
+        if (null != this.completedQueue) {
+            // 等待调用者取出，任务取消时丢弃
+            boolean offered = false;
+            try {
+                while (!offered && !this.cancelled.get()) {
+                    offered = this.completedQueue.offer(fileLabel, 100, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException e) {
+                // 线程被中断时丢弃
+            }
+        }
+
+        this.completedCount.incrementAndGet();
+        this.checkFinished();
+    }
+
+    /**
+     * 计入失败的文件。需要先调用 {@link #settle(Object)} 。
+     *
+     * @param key 文件标识。
+     * @param throwable 失败原因。
+     */
+    protected void failed(K key, Throwable throwable) {
+        this.failures.put(key, throwable);
+        this.failedCount.incrementAndGet();
+        this.checkFinished();
+    }
+
+    private void checkFinished() {
+        if (this.completedCount.get() + this.failedCount.get() == this.total) {
+            this.finish();
+        }
+    }
+
+    /**
+     * 结束任务，多次调用只执行一次。
+     */
+    protected void finish() {
+        if (!this.finished.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            this.finisher.run();
+        } finally {
+            synchronized (this) {
+                this.done = true;
+                this.notifyAll();
+            }
+        }
+    }
+
+    protected void cancel() {
+        this.cancelled.set(true);
+    }
+
+    protected boolean isCancelled() {
+        return this.cancelled.get();
+    }
+
+    protected boolean isFinished() {
+        return this.done;
+    }
+
+    protected boolean await(long timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (this) {
+            while (!this.isFinished()) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+
+                try {
+                    this.wait(remaining);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                    break;
+                }
+            }
+        }
+
+        return this.isFinished();
+    }
+
+    protected FileLabel poll(long timeout) {
+        if (null == this.completedQueue) {
+            return null;
+        }
+
+        long deadline = System.currentTimeMillis() + timeout;
+        FileLabel fileLabel = this.completedQueue.poll();
+        while (null == fileLabel && !this.isFinished()) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                break;
+            }
+
+            try {
+                fileLabel = this.completedQueue.poll(Math.min(remaining, 100), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return null;
+            }
+        }
+
+        if (null == fileLabel) {
+            // 结束前放入的最后一个标签
+            fileLabel = this.completedQueue.poll();
+        }
+        return fileLabel;
+    }
+
+    protected int getCompletedCount() {
+        return this.completedCount.get();
+    }
+
+    protected int getFailedCount() {
+        return this.failedCount.get();
+    }
+
+    protected Map<K, Throwable> getFailures() {
+        return new ConcurrentHashMap<>(this.failures);
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * This source file is part of Cube.
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2023 Cube Team.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cube.client.file;
+
+import cell.util.log.Logger;
+import cube.client.listener.BulkDownloadListener;
+import cube.common.entity.FileLabel;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 批量下载任务。
+ * 以限定的并发数下载文件，文件标签在每个文件完成时返回，失败的文件逐个报告。
+ * 设置监听器时文件标签只交给监听器，不设置监听器时通过 {@link #poll(long)} 取出，
+ * 未取出的文件标签最多缓存 {@link BatchTracker#DEFAULT_RETENTION} 个，缓存已满时下载等待取出。
+ * 返回的文件处于租约中，使用完毕后调用 {@link FileProcessor#releaseFile(FileLabel)} 释放。
+ */
+public class BulkDownload {
+
+    /**
+     * 默认同时下载的文件数量。
+     */
+    public final static int DEFAULT_PARALLELISM = 4;
+
+    private final FileProcessor processor;
+
+    private final List<String> fileCodes;
+
+    private final BulkDownloadListener listener;
+
+    private final ExecutorService executor;
+
+    private final BatchTracker<String> tracker;
+
+    protected BulkDownload(FileProcessor processor, Collection<String> fileCodes, int parallelism,
+                           BulkDownloadListener listener) {
+        this.processor = processor;
+        // 重复的文件码只下载一次
+        this.fileCodes = new ArrayList<>(new LinkedHashSet<>(fileCodes));
+        this.listener = listener;
+        this.tracker = new BatchTracker<>(this.fileCodes.size(),
+                (null != listener) ? 0 : BatchTracker.DEFAULT_RETENTION, this::onFinished);
+
+        AtomicInteger count = new AtomicInteger(0);
+        this.executor = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, this.fileCodes.size())),
+                (runnable) -> {
+            Thread thread = new Thread(runnable, "BulkDownload-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    protected void start() {
+        if (this.fileCodes.isEmpty()) {
+            this.tracker.finish();
+            return;
+        }
+
+        for (String fileCode : this.fileCodes) {
+            this.executor.execute(() -> {
+                try {
+                    this.download(fileCode);
+                } catch (RuntimeException e) {
+                    Logger.w(this.getClass(), "#download - " + fileCode, e);
+                    this.fail(fileCode, e);
+                }
+            });
+        }
+        this.executor.shutdown();
+    }
+
+    private void download(String fileCode) {
+        if (this.tracker.isCancelled()) {
+            this.fail(fileCode, new CancellationException("Bulk download cancelled"));
+            return;
+        }
+
+        FileLabel fileLabel = this.processor.downloadFile(fileCode);
+        if (null != fileLabel) {
+            this.complete(fileCode, fileLabel);
+        }
+        else {
+            this.fail(fileCode, new IOException("Download file failed : " + fileCode));
+        }
+    }
+
+    private void complete(String fileCode, FileLabel fileLabel) {
+        if (!this.tracker.settle(fileCode)) {
+            return;
+        }
+
+        if (null != this.listener) {
+            try {
+                this.listener.onCompleted(this, fileCode, fileLabel);
+            } catch (RuntimeException e) {
+                Logger.w(this.getClass(), "#complete - Listener error : " + fileCode, e);
+            }
+        }
+
+        this.tracker.completed(fileLabel);
+    }
+
+    private void fail(String fileCode, Throwable throwable) {
+        if (!this.tracker.settle(fileCode)) {
+            return;
+        }
+
+        if (null != this.listener) {
+            try {
+                this.listener.onFailed(this, fileCode, throwable);
+            } catch (RuntimeException e) {
+                Logger.w(this.getClass(), "#fail - Listener error : " + fileCode, e);
+            }
+        }
+
+        this.tracker.failed(fileCode, throwable);
+    }
+
+    private void onFinished() {
+        if (null != this.listener) {
+            try {
+                this.listener.onFinished(this);
+            } catch (RuntimeException e) {
+                Logger.w(this.getClass(), "#finish - Listener error", e);
+            }
+        }
+    }
+
+    /**
+     * 取消批量下载。未开始的文件不再下载，正在传输的文件仍会完成。
+     */
+    public void cancel() {
+        this.tracker.cancel();
+    }
+
+    /**
+     * 等待所有文件处理结束。
+     * 未设置监听器时需要通过 {@link #poll(long)} 取出文件标签，否则缓存已满后下载不会继续。
+     *
+     * @param timeout 超时时长，单位：毫秒。
+     * @return 如果所有文件处理结束返回 {@code true} 。
+     */
+    public boolean await(long timeout) {
+        return this.tracker.await(timeout);
+    }
+
+    /**
+     * 获取下一个完成的文件标签，按完成顺序返回。设置监听器时不保留文件标签，总是返回 {@code null} 。
+     *
+     * @param timeout 超时时长，单位：毫秒。
+     * @return 返回文件标签，超时或者所有文件都已返回时返回 {@code null} 。
+     */
+    public FileLabel poll(long timeout) {
+        return this.tracker.poll(timeout);
+    }
+
+    public boolean isFinished() {
+        return this.tracker.isFinished();
+    }
+
+    public int numFiles() {
+        return this.fileCodes.size();
+    }
+
+    public int getCompletedCount() {
+        return this.tracker.getCompletedCount();
+    }
+
+    public int getFailedCount() {
+        return this.tracker.getFailedCount();
+    }
+
+    /**
+     * 获取下载失败的文件码及失败原因。
+     *
+     * @return 返回文件码到失败原因的映射。
+     */
+    public Map<String, Throwable> getFailures() {
+        return this.tracker.getFailures();
+    }
+}
@@ -0,0 +1,357 @@
+/*
+ * This source file is part of Cube.
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2023 Cube Team.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cube.client.file;
+
+import cell.util.log.Logger;
+import cube.client.listener.BulkUploadListener;
+import cube.client.listener.FileUploadListener;
+import cube.common.entity.FileLabel;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 批量上传任务。
+ * 先并发查询文件是否已存在，不存在的文件再以限定的并发数上传，文件标签在每个文件完成时返回。
+ * 文件由 {@link FileUploader} 的工作线程上传，实际并发数不超过 {@link FileUploader#getMaxWorkers()} 。
+ * 设置监听器时文件标签只交给监听器，不设置监听器时通过 {@link #poll(long)} 取出，
+ * 未取出的文件标签最多缓存 {@link BatchTracker#DEFAULT_RETENTION} 个，缓存已满时上传等待取出。
+ */
+public class BulkUpload {
+
+    /**
+     * 同时进行的存在性查询数量。
+     */
+    private final static int CHECK_CONCURRENCY = 8;
+
+    private final FileProcessor processor;
+
+    private final List<File> files;
+
+    private final BulkUploadListener listener;
+
+    private final ExecutorService checkExecutor;
+
+    private final ExecutorService uploadExecutor;
+
+    private final long totalSize;
+
+    private final AtomicLong processedSize = new AtomicLong(0);
+
+    private final AtomicInteger existedCount = new AtomicInteger(0);
+
+    private final BatchTracker<File> tracker;
+
+    /**
+     * 已提交到上传器的文件，包括仍在排队的文件。
+     */
+    private final Map<File, FileUploader.UploadMeta> uploadingMap = new ConcurrentHashMap<>();
+
+    protected BulkUpload(FileProcessor processor, Collection<File> files, int parallelism,
+                         BulkUploadListener listener) {
+        this.processor = processor;
+        this.files = new ArrayList<>(files);
+        this.listener = listener;
+
+        long size = 0;
+        for (File file : this.files) {
+            size += file.length();
+        }
+        this.totalSize = size;
+        this.tracker = new BatchTracker<>(this.files.size(),
+                (null != listener) ? 0 : BatchTracker.DEFAULT_RETENTION, this::onFinished);
+
+        AtomicInteger count = new AtomicInteger(0);
+        this.checkExecutor = Executors.newFixedThreadPool(Math.max(1, Math.min(CHECK_CONCURRENCY, this.files.size())),
+                (runnable) -> {
+            Thread thread = new Thread(runnable, "BulkUpload-Check-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        // 上传在上传器的工作线程上进行，更多的等待线程不会提高并发数
+        int workers = Math.min(parallelism, processor.getFileUploader().getMaxWorkers());
+        this.uploadExecutor = Executors.newFixedThreadPool(Math.max(1, workers), (runnable) -> {
+            Thread thread = new Thread(runnable, "BulkUpload-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 列出目录下的所有文件。
+     *
+     * @param directory 指定目录。
+     * @param recursive 是否包含子目录。
+     * @return 返回文件列表。
+     */
+    protected static List<File> listFiles(File directory, boolean recursive) {
+        List<File> result = new ArrayList<>();
+        File[] children = directory.listFiles();
+        if (null == children) {
+            return result;
+        }
+
+        for (File child : children) {
+            if (child.isFile()) {
+                result.add(child);
+            }
+            else if (recursive && child.isDirectory()) {
+                result.addAll(listFiles(child, true));
+            }
+        }
+        return result;
+    }
+
+    protected void start() {
+        if (this.files.isEmpty()) {
+            this.tracker.finish();
+            return;
+        }
+
+        for (File file : this.files) {
+            this.checkExecutor.execute(() -> {
+                try {
+                    this.check(file);
+                } catch (RuntimeException e) {
+                    Logger.w(this.getClass(), "#check - " + file.getName(), e);
+                    this.fail(file, e);
+                }
+            });
+        }
+        this.checkExecutor.shutdown();
+    }
+
+    private void check(File file) {
+        if (this.tracker.isCancelled()) {
+            this.fail(file, new CancellationException("Bulk upload cancelled"));
+            return;
+        }
+
+        FileLabel fileLabel = null;
+        try {
+            fileLabel = this.processor.findFile(file);
+        } catch (IOException e) {
+            // 查询失败时直接上传
+            Logger.w(this.getClass(), "#check - " + file.getName() + " : " + e.getMessage());
+        }
+
+        if (null != fileLabel) {
+            this.existedCount.incrementAndGet();
+            this.processedSize.addAndGet(file.length());
+            this.complete(file, fileLabel);
+            return;
+        }
+
+        this.uploadExecutor.execute(() -> {
+            try {
+                this.upload(file);
+            } catch (RuntimeException e) {
+                Logger.w(this.getClass(), "#upload - " + file.getName(), e);
+                this.fail(file, e);
+            }
+        });
+    }
+
+    private void upload(File file) {
+        if (this.tracker.isCancelled()) {
+            this.fail(file, new CancellationException("Bulk upload cancelled"));
+            return;
+        }
+
+        AtomicLong fileProcessed = new AtomicLong(0);
+        AtomicBoolean failed = new AtomicBoolean(false);
+
+        FileLabel fileLabel = this.processor.uploadWithLabel(file, new FileUploadListener() {
+            @Override
+            public void onUploading(FileUploader.UploadMeta meta, long processedSize) {
+                long delta = processedSize - fileProcessed.getAndSet(processedSize);
+                BulkUpload.this.processedSize.addAndGet(delta);
+                if (null != listener) {
+                    listener.onUploading(BulkUpload.this, file, processedSize);
+                }
+            }
+
+            @Override
+            public void onCompleted(FileUploader.UploadMeta meta) {
+                // Nothing
+            }
+
+            @Override
+            public void onFailed(FileUploader.UploadMeta meta, Throwable throwable) {
+                failed.set(true);
+                fail(file, throwable);
+            }
+        }, (meta) -> {
+            // 提交后立即记录，取消时排队中的任务也能被移除
+            this.uploadingMap.put(file, meta);
+            if (this.tracker.isCancelled()) {
+                this.processor.getFileUploader().cancel(meta.fileCode);
+            }
+        });
+
+        this.uploadingMap.remove(file);
+        // 修正进度，失败的文件不计入已处理大小
+        this.processedSize.addAndGet((null != fileLabel ? file.length() : 0) - fileProcessed.get());
+
+        if (null != fileLabel) {
+            this.complete(file, fileLabel);
+        }
+        else if (!failed.get()) {
+            this.fail(file, new IOException("Put file label failed : " + file.getName()));
+        }
+    }
+
+    private void complete(File file, FileLabel fileLabel) {
+        if (!this.tracker.settle(file)) {
+            return;
+        }
+
+        if (null != this.listener) {
+            try {
+                this.listener.onCompleted(this, file, fileLabel);
+            } catch (RuntimeException e) {
+                Logger.w(this.getClass(), "#complete - Listener error : " + file.getName(), e);
+            }
+        }
+
+        this.tracker.completed(fileLabel);
+    }
+
+    private void fail(File file, Throwable throwable) {
+        if (!this.tracker.settle(file)) {
+            return;
+        }
+
+        if (null != this.listener) {
+            try {
+                this.listener.onFailed(this, file, throwable);
+            } catch (RuntimeException e) {
+                Logger.w(this.getClass(), "#fail - Listener error : " + file.getName(), e);
+            }
+        }
+
+        this.tracker.failed(file, throwable);
+    }
+
+    private void onFinished() {
+        this.uploadExecutor.shutdown();
+
+        if (null != this.listener) {
+            try {
+                this.listener.onFinished(this);
+            } catch (RuntimeException e) {
+                Logger.w(this.getClass(), "#finish - Listener error", e);
+            }
+        }
+    }
+
+    /**
+     * 取消批量上传。未开始的文件不再上传，已提交到上传器的文件无论排队或正在上传都被取消。
+     */
+    public void cancel() {
+        this.tracker.cancel();
+
+        FileUploader uploader = this.processor.getFileUploader();
+        for (FileUploader.UploadMeta meta : this.uploadingMap.values()) {
+            uploader.cancel(meta.fileCode);
+        }
+    }
+
+    /**
+     * 等待所有文件处理结束。
+     * 未设置监听器时需要通过 {@link #poll(long)} 取出文件标签，否则缓存已满后上传不会继续。
+     *
+     * @param timeout 超时时长，单位：毫秒。
+     * @return 如果所有文件处理结束返回 {@code true} 。
+     */
+    public boolean await(long timeout) {
+        return this.tracker.await(timeout);
+    }
+
+    /**
+     * 获取下一个完成的文件标签，按完成顺序返回。设置监听器时不保留文件标签，总是返回 {@code null} 。
+     *
+     * @param timeout 超时时长，单位：毫秒。
+     * @return 返回文件标签，超时或者所有文件都已返回时返回 {@code null} 。
+     */
+    public FileLabel poll(long timeout) {
+        return this.tracker.poll(timeout);
+    }
+
+    public boolean isFinished() {
+        return this.tracker.isFinished();
+    }
+
+    public int numFiles() {
+        return this.files.size();
+    }
+
+    public int getCompletedCount() {
+        return this.tracker.getCompletedCount();
+    }
+
+    public int getFailedCount() {
+        return this.tracker.getFailedCount();
+    }
+
+    /**
+     * 获取上传失败的文件及失败原因。
+     *
+     * @return 返回文件到失败原因的映射。
+     */
+    public Map<File, Throwable> getFailures() {
+        return this.tracker.getFailures();
+    }
+
+    /**
+     * 获取服务器上已存在而未上传的文件数量。
+     *
+     * @return 返回已存在的文件数量。
+     */
+    public int getExistedCount() {
+        return this.existedCount.get();
+    }
+
+    public long getTotalSize() {
+        return this.totalSize;
+    }
+
+    public long getProcessedSize() {
+        return this.processedSize.get();
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ * This source file is part of Cube.
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2023 Cube Team.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cube.client.file;
+
+import cell.util.log.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 本地文件摘要缓存。
+ * 以文件路径、大小、修改时间和 inode 为键记录文件摘要，未修改的文件无需重新计算摘要。
+ * 索引文件只追加写入，加载时后写入的记录覆盖先写入的记录，失效记录过多时压缩索引文件。
+ */
+public class DigestCache {
+
+    private final static int VERSION = 1;
+
+    private final File indexFile;
+
+    private final Map<String, Record> recordMap;
+
+    private DataOutputStream output;
+
+    /**
+     * 索引文件中的记录数量。
+     */
+    private int numWritten = 0;
+
+    private long hitCount = 0;
+
+    private long missCount = 0;
+
+    /**
+     * 构造函数。
+     *
+     * @param indexFile 指定索引文件。
+     */
+    public DigestCache(File indexFile) {
+        this.indexFile = indexFile;
+        this.recordMap = new ConcurrentHashMap<>();
+        this.load();
+    }
+
+    /**
+     * 获取文件摘要，如果文件在缓存后被修改则返回 {@code null} 。
+     *
+     * @param file 指定文件。
+     * @return 返回文件摘要。
+     */
+    public FileDigest get(File file) {
+        Record record = this.recordMap.get(file.getAbsolutePath());
+        if (null == record) {
+            this.countMiss();
+            return null;
+        }
+
+        Record current = this.stat(file, null);
+        if (null == current || !record.matches(current)) {
+            this.countMiss();
+            return null;
+        }
+
+        this.countHit();
+        return record.digest;
+    }
+
+    /**
+     * 获取文件摘要，缓存中没有有效的摘要时计算摘要并写入缓存。
+     *
+     * @param file 指定文件。
+     * @return 返回文件摘要。
+     * @throws IOException
+     */
+    public FileDigest compute(File file) throws IOException {
+        FileDigest digest = this.get(file);
+        if (null != digest) {
+            return digest;
+        }
+
+        // 计算前记录文件状态，计算期间文件被修改时记录不会再匹配
+        Record before = this.stat(file, null);
+        digest = FileDigest.compute(file);
+        if (null != before) {
+            this.put(new Record(before.path, before.size, before.lastModified, before.inode, digest));
+        }
+        return digest;
+    }
+
+    /**
+     * 记录文件摘要。
+     *
+     * @param file 指定文件。
+     * @param digest 文件摘要。
+     */
+    public void put(File file, FileDigest digest) {
+        Record record = this.stat(file, digest);
+        if (null != record) {
+            this.put(record);
+        }
+    }
+
+    /**
+     * 移除文件摘要。
+     *
+     * @param file 指定文件。
+     */
+    public void remove(File file) {
+        String path = file.getAbsolutePath();
+        if (null != this.recordMap.remove(path)) {
+            this.append(new Record(path, -1, 0, "", null));
+        }
+    }
+
+    public int size() {
+        return this.recordMap.size();
+    }
+
+    public synchronized long getHitCount() {
+        return this.hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return this.missCount;
+    }
+
+    /**
+     * 关闭索引文件。
+     */
+    public synchronized void close() {
+        if (null != this.output) {
+            try {
+                this.output.close();
+            } catch (IOException e) {
+                // Nothing
+            }
+            this.output = null;
+        }
+    }
+
+    private synchronized void countHit() {
+        ++this.hitCount;
+    }
+
+    private synchronized void countMiss() {
+        ++this.missCount;
+    }
+
+    private void put(Record record) {
+        Record old = this.recordMap.put(record.path, record);
+        if (null == old || !old.matches(record) || !old.digest.equals(record.digest)) {
+            this.append(record);
+        }
+    }
+
+    private Record stat(File file, FileDigest digest) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            if (!attributes.isRegularFile()) {
+                return null;
+            }
+
+            Object fileKey = attributes.fileKey();
+            return new Record(file.getAbsolutePath(), attributes.size(), attributes.lastModifiedTime().toMillis(),
+                    (null != fileKey) ? fileKey.toString() : "", digest);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private synchronized void load() {
+        if (!this.indexFile.exists()) {
+            return;
+        }
+
+        try (DataInputStream input = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(this.indexFile)))) {
+            if (input.readInt() != VERSION) {
+                Logger.w(this.getClass(), "#load - Unknown index version, discard : " + this.indexFile.getName());
+                return;
+            }
+
+            while (true) {
+                Record record = Record.read(input);
+                ++this.numWritten;
+                if (record.size < 0) {
+                    this.recordMap.remove(record.path);
+                }
+                else {
+                    this.recordMap.put(record.path, record);
+                }
+            }
+        } catch (EOFException e) {
+            // 读取完毕，末尾可能存在未写完整的记录
+        } catch (IOException e) {
+            Logger.w(this.getClass(), "#load - Read index error : " + this.indexFile.getName(), e);
+        }
+    }
+
+    private synchronized void append(Record record) {
+        try {
+            if (null == this.output) {
+                this.compact();
+            }
+
+            record.write(this.output);
+            this.output.flush();
+            ++this.numWritten;
+
+            if (this.numWritten > 1024 && this.numWritten > this.recordMap.size() * 2) {
+                this.output.close();
+                this.output = null;
+            }
+        } catch (IOException e) {
+            Logger.w(this.getClass(), "#append - Write index error : " + this.indexFile.getName(), e);
+            this.close();
+        }
+    }
+
+    /**
+     * 将有效记录重写到新的索引文件，然后以追加方式打开索引文件。
+     */
+    private void compact() throws IOException {
+        File parent = this.indexFile.getParentFile();
+        if (null != parent && !parent.exists()) {
+            parent.mkdirs();
+        }
+
+        File temp = new File(this.indexFile.getPath() + ".tmp");
+        try (DataOutputStream temporary = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp)))) {
+            temporary.writeInt(VERSION);
+            for (Record record : this.recordMap.values()) {
+                record.write(temporary);
+            }
+        }
+        Files.move(temp.toPath(), this.indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+
+        this.numWritten = this.recordMap.size();
+        this.output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.indexFile, true)));
+    }
+
+    /**
+     * 索引记录。大小为负数的记录表示删除。
+     */
+    private static class Record {
+
+        protected final String path;
+
+        protected final long size;
+
+        protected final long lastModified;
+
+        protected final String inode;
+
+        protected final FileDigest digest;
+
+        protected Record(String path, long size, long lastModified, String inode, FileDigest digest) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.inode = inode;
+            this.digest = digest;
+        }
+
+        protected boolean matches(Record other) {
+            return this.size == other.size && this.lastModified == other.lastModified
+                    && this.inode.equals(other.inode);
+        }
+
+        protected void write(DataOutputStream output) throws IOException {
+            output.writeUTF(this.path);
+            output.writeLong(this.size);
+            if (this.size >= 0) {
+                output.writeLong(this.lastModified);
+                output.writeUTF(this.inode);
+                output.writeUTF(this.digest.md5Code);
+                output.writeUTF(this.digest.sha1Code);
+            }
+        }
+
+        protected static Record read(DataInputStream input) throws IOException {
+            String path = input.readUTF();
+            long size = input.readLong();
+            if (size < 0) {
+                return new Record(path, size, 0, "", null);
+            }
+
+            long lastModified = input.readLong();
+            String inode = input.readUTF();
+            String md5Code = input.readUTF();
+            String sha1Code = input.readUTF();
+            return new Record(path, size, lastModified, inode, new FileDigest(md5Code, sha1Code));
+        }
+    }
+}
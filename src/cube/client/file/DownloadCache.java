@@ -0,0 +1,245 @@
+/*
+ * This source file is part of Cube.
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2023 Cube Team.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cube.client.file;
+
+import cell.util.log.Logger;
+import cube.common.entity.FileLabel;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 按内容寻址的本地下载缓存。
+ * 本地已有文件码对应的文件且摘要与文件标签一致时无需再次传输。
+ * 已下载的文件以 MD5 为名硬链接到内容目录，不同文件码的相同内容共享同一份数据。
+ * 本地文件存储按文件标识统计容量，内容文件与其硬链接只计算一次。
+ */
+public class DownloadCache {
+
+    /**
+     * 内容目录名。
+     */
+    public final static String DIRECTORY = "content";
+
+    private final File contentPath;
+
+    private DigestCache digestCache;
+
+    private LocalFileStore fileStore;
+
+    private final AtomicLong hitCount = new AtomicLong(0);
+
+    private final AtomicLong linkCount = new AtomicLong(0);
+
+    private final AtomicLong missCount = new AtomicLong(0);
+
+    /**
+     * 构造函数。
+     *
+     * @param filePath 指定数据目录。
+     */
+    public DownloadCache(File filePath) {
+        this.contentPath = new File(filePath, DIRECTORY);
+    }
+
+    /**
+     * 设置文件摘要缓存，避免每次查找都重新计算本地文件的摘要。
+     *
+     * @param digestCache 指定文件摘要缓存。
+     */
+    public void setDigestCache(DigestCache digestCache) {
+        this.digestCache = digestCache;
+    }
+
+    public void setFileStore(LocalFileStore fileStore) {
+        this.fileStore = fileStore;
+    }
+
+    /**
+     * 查找与文件标签内容一致的本地文件。
+     * 目标文件不存在或内容不一致时，尝试从内容目录硬链接相同内容的文件到目标位置。
+     *
+     * @param fileLabel 指定文件标签。
+     * @param target 指定文件码对应的本地文件。
+     * @return 返回内容一致的本地文件，没有时返回 {@code null} 值。
+     */
+    public File lookup(FileLabel fileLabel, File target) {
+        String md5Code = fileLabel.getMD5Code();
+        if (null == md5Code) {
+            this.missCount.incrementAndGet();
+            return null;
+        }
+
+        if (this.matches(target, fileLabel)) {
+            this.hitCount.incrementAndGet();
+            if (null != this.fileStore) {
+                this.fileStore.touch(target);
+            }
+            return target;
+        }
+
+        File content = new File(this.contentPath, md5Code.toLowerCase());
+        if (this.matches(content, fileLabel)) {
+            try {
+                this.link(content, target);
+
+                this.linkCount.incrementAndGet();
+                if (null != this.fileStore) {
+                    this.fileStore.touch(content);
+                    this.fileStore.record(target);
+                }
+                return target;
+            } catch (IOException e) {
+                Logger.w(this.getClass(), "#lookup - Link failed : " + fileLabel.getFileCode(), e);
+            }
+        }
+
+        this.missCount.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * 记录已下载的文件。文件摘要与文件标签一致时链接到内容目录。
+     *
+     * @param fileLabel 指定文件标签。
+     * @param file 指定已下载的文件。
+     * @param digest 指定已计算的文件摘要，为 {@code null} 时计算文件摘要。
+     * @return 如果文件已记录到内容目录返回 {@code true} 。
+     */
+    public boolean store(FileLabel fileLabel, File file, FileDigest digest) {
+        String md5Code = fileLabel.getMD5Code();
+        if (null == md5Code) {
+            return false;
+        }
+
+        try {
+            if (null == digest) {
+                digest = this.digest(file);
+            }
+            else if (null != this.digestCache) {
+                this.digestCache.put(file, digest);
+            }
+
+            if (!this.matches(digest, fileLabel)) {
+                Logger.w(this.getClass(), "#store - Digest mismatch : " + fileLabel.getFileCode());
+                return false;
+            }
+
+            File content = new File(this.contentPath, md5Code.toLowerCase());
+            if (content.exists() && Files.isSameFile(content.toPath(), file.toPath())) {
+                return true;
+            }
+
+            this.contentPath.mkdirs();
+            Files.deleteIfExists(content.toPath());
+            Files.createLink(content.toPath(), file.toPath());
+
+            if (null != this.digestCache) {
+                this.digestCache.put(content, digest);
+            }
+            if (null != this.fileStore) {
+                this.fileStore.record(content);
+            }
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            Logger.w(this.getClass(), "#store - Store failed : " + fileLabel.getFileCode(), e);
+            return false;
+        }
+    }
+
+    /**
+     * 获取目标文件直接命中的次数。
+     *
+     * @return 返回命中次数。
+     */
+    public long getHitCount() {
+        return this.hitCount.get();
+    }
+
+    /**
+     * 获取通过内容目录链接命中的次数。
+     *
+     * @return 返回链接命中次数。
+     */
+    public long getLinkCount() {
+        return this.linkCount.get();
+    }
+
+    /**
+     * 获取未命中的次数。
+     *
+     * @return 返回未命中次数。
+     */
+    public long getMissCount() {
+        return this.missCount.get();
+    }
+
+    private boolean matches(File file, FileLabel fileLabel) {
+        if (!file.isFile() || file.length() != fileLabel.getFileSize()) {
+            return false;
+        }
+
+        try {
+            return this.matches(this.digest(file), fileLabel);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private boolean matches(FileDigest digest, FileLabel fileLabel) {
+        if (!fileLabel.getMD5Code().equalsIgnoreCase(digest.md5Code)) {
+            return false;
+        }
+
+        String sha1Code = fileLabel.getSHA1Code();
+        return (null == sha1Code || sha1Code.equalsIgnoreCase(digest.sha1Code));
+    }
+
+    private FileDigest digest(File file) throws IOException {
+        return (null != this.digestCache) ? this.digestCache.compute(file) : FileDigest.compute(file);
+    }
+
+    /**
+     * 将内容文件链接到目标位置，文件系统不支持硬链接时复制文件。
+     */
+    private void link(File content, File target) throws IOException {
+        File dir = target.getParentFile();
+        if (null != dir && !dir.exists()) {
+            dir.mkdirs();
+        }
+
+        Files.deleteIfExists(target.toPath());
+        try {
+            Files.createLink(target.toPath(), content.toPath());
+        } catch (UnsupportedOperationException e) {
+            Files.copy(content.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
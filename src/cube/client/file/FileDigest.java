@@ -0,0 +1,100 @@
+/*
+ * This source file is part of Cube.
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2023 Cube Team.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cube.client.file;
+
+import cube.util.FileUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * 文件内容摘要。
+ */
+public class FileDigest {
+
+    public final String md5Code;
+
+    public final String sha1Code;
+
+    public FileDigest(String md5Code, String sha1Code) {
+        this.md5Code = md5Code;
+        this.sha1Code = sha1Code;
+    }
+
+    /**
+     * 计算文件的 MD5 和 SHA1 摘要。
+     *
+     * @param file 指定文件。
+     * @return 返回文件摘要。
+     * @throws IOException
+     */
+    public static FileDigest compute(File file) throws IOException {
+        MessageDigest md5 = null;
+        MessageDigest sha1 = null;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+            sha1 = MessageDigest.getInstance("SHA1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+
+        try (FileInputStream fis = new FileInputStream(file)) {
+            byte[] bytes = new byte[128 * 1024];
+            int length = 0;
+            while ((length = fis.read(bytes)) > 0) {
+                md5.update(bytes, 0, length);
+                sha1.update(bytes, 0, length);
+            }
+        }
+
+        return new FileDigest(FileUtils.bytesToHexString(md5.digest()),
+                FileUtils.bytesToHexString(sha1.digest()));
+    }
+
+    @Override
+    public boolean equals(Object object) {
+        if (object instanceof FileDigest) {
+            FileDigest other = (FileDigest) object;
+            return this.md5Code.equals(other.md5Code) && this.sha1Code.equals(other.sha1Code);
+        }
+
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        return this.md5Code.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return this.md5Code + "/" + this.sha1Code;
+    }
+}
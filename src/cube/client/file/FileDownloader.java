@@ -0,0 +1,1031 @@
+/*
+ * This source file is part of Cube.
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2023 Cube Team.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cube.client.file;
+
+import cell.core.talk.dialect.ActionDialect;
+import cell.util.log.Logger;
+import cube.client.Connector;
+import cube.client.DigestStreamListener;
+import cube.client.Receiver;
+import cube.client.StreamListener;
+import cube.client.StreamSink;
+import cube.common.action.ClientAction;
+import cube.common.entity.FileLabel;
+import cube.common.state.FileStorageStateCode;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 文件下载器。
+ * 同一文件码的并发下载请求会被合并为一次传输，所有等待者共享传输结果。
+ * 服务器按文件名传输数据流，因此同名的不同文件会依次传输，并分别存放在各自文件码的目录里。
+ * 也可以将数据直接写入调用者提供的输出流或通道，不经过本地文件。
+ */
+public class FileDownloader {
+
+    /**
+     * 下载文件存放的子目录名。
+     */
+    public final static String DIRECTORY = "files";
+
+    /**
+     * 分段下载时的最小分段大小。
+     */
+    private final static long MIN_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    private File filePath;
+
+    private Connector connector;
+
+    private Receiver receiver;
+
+    private LocalFileStore fileStore;
+
+    private DownloadCache downloadCache;
+
+    /**
+     * 是否校验下载数据的摘要。
+     */
+    private boolean verifying = false;
+
+    /**
+     * 校验失败时的最大重试次数。
+     */
+    private int maxRetries = 2;
+
+    /**
+     * 单次传输的超时时长。
+     */
+    private long timeout = 5 * 60 * 1000;
+
+    /**
+     * 交给调用者的本地文件的租约时长。
+     */
+    private long leaseTimeout = 30 * 60 * 1000;
+
+    /**
+     * 服务器是否支持范围传输，{@code null} 表示尚未确认。
+     * 支持范围传输的服务器在应答里回传请求的 {@code offset} 参数。
+     */
+    private volatile Boolean rangeSupported = null;
+
+    /**
+     * 文件码对应的下载任务。
+     */
+    private ConcurrentMap<String, DownloadTask> taskMap;
+
+    /**
+     * 流名称对应的传输槽。
+     */
+    private ConcurrentMap<String, StreamSlot> slotMap;
+
+    public FileDownloader(File filePath, Connector connector, Receiver receiver) {
+        this.filePath = filePath;
+        this.connector = connector;
+        this.receiver = receiver;
+        this.taskMap = new ConcurrentHashMap<>();
+        this.slotMap = new ConcurrentHashMap<>();
+    }
+
+    public void setFileStore(LocalFileStore fileStore) {
+        this.fileStore = fileStore;
+    }
+
+    /**
+     * 设置下载缓存。设置后本地已有内容一致的文件时不再传输。
+     *
+     * @param downloadCache 指定下载缓存。
+     */
+    public void setDownloadCache(DownloadCache downloadCache) {
+        this.downloadCache = downloadCache;
+    }
+
+    /**
+     * 设置是否校验下载数据。启用后接收数据时在其他线程上同时计算摘要，
+     * 传输完成时与文件标签的摘要比较，不一致时重新传输。
+     *
+     * @param verifying 是否校验。
+     * @param maxRetries 校验失败时的最大重试次数。
+     */
+    public void setVerifying(boolean verifying, int maxRetries) {
+        this.verifying = verifying;
+        this.maxRetries = Math.max(0, maxRetries);
+    }
+
+    /**
+     * 是否校验下载数据。
+     *
+     * @return 如果校验下载数据返回 {@code true} 。
+     */
+    public boolean isVerifying() {
+        return this.verifying;
+    }
+
+    /**
+     * 设置单次传输的超时时长。
+     *
+     * @param timeout 指定超时时长，单位：毫秒。
+     */
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * 设置交给调用者的本地文件的租约时长。租约期间文件不会被本地文件存储淘汰。
+     *
+     * @param leaseTimeout 指定租约时长，单位：毫秒。
+     */
+    public void setLeaseTimeout(long leaseTimeout) {
+        this.leaseTimeout = leaseTimeout;
+    }
+
+    /**
+     * 释放下载文件的租约。调用者不再使用文件标签里的本地文件时调用。
+     *
+     * @param fileLabel 指定由 {@link #download(String, String)} 返回的文件标签。
+     */
+    public void release(FileLabel fileLabel) {
+        if (null != this.fileStore && null != fileLabel && null != fileLabel.getFile()) {
+            this.fileStore.release(fileLabel.getFile());
+        }
+    }
+
+    /**
+     * 指定文件码的文件是否正在下载。
+     *
+     * @param fileCode 指定文件码。
+     * @return 如果正在下载返回 {@code true} 。
+     */
+    public boolean isDownloading(String fileCode) {
+        return this.taskMap.containsKey(fileCode);
+    }
+
+    /**
+     * 下载指定文件码的文件。如果该文件正在被其他线程下载，则等待并共享该次传输的结果。
+     *
+     * @param domainName 指定域名称。
+     * @param fileCode 指定文件码。
+     * @return 返回设置了本地文件的文件标签。下载失败返回 {@code null} 值。
+     *         本地文件在调用 {@link #release(FileLabel)} 或租约到期之前不会被淘汰。
+     */
+    public FileLabel download(String domainName, String fileCode) {
+        DownloadTask task = new DownloadTask();
+        DownloadTask current = this.taskMap.putIfAbsent(fileCode, task);
+        if (null != current) {
+            // 已有相同文件的传输，等待共享结果。发起者包括重试在内的每一步都有超时，并且总会结束任务
+            Logger.d(this.getClass(), "#download - Join transmitting : " + fileCode);
+            FileLabel fileLabel = current.waitResult();
+            if (null != fileLabel) {
+                // 每个等待者持有各自的租约
+                this.lease(fileLabel.getFile());
+            }
+            return fileLabel;
+        }
+
+        FileLabel fileLabel = null;
+        try {
+            fileLabel = this.transmit(domainName, fileCode);
+        } finally {
+            this.taskMap.remove(fileCode, task);
+            task.finish(fileLabel);
+        }
+
+        return fileLabel;
+    }
+
+    /**
+     * 下载指定文件码的文件，并将数据直接写入指定输出流，不写入本地文件。
+     * 输出流由调用者关闭。每次调用都独立传输，不与其他下载合并。
+     *
+     * @param domainName 指定域名称。
+     * @param fileCode 指定文件码。
+     * @param output 指定输出流。
+     * @return 返回文件标签。下载失败返回 {@code null} 值。
+     */
+    public FileLabel download(String domainName, String fileCode, OutputStream output) {
+        // 先查询文件标签，以确定流名称
+        ActionDialect actionDialect = new ActionDialect(ClientAction.GetFile.name);
+        actionDialect.addParam("domain", domainName);
+        actionDialect.addParam("fileCode", fileCode);
+
+        FileLabel fileLabel = this.request(actionDialect);
+        if (null == fileLabel) {
+            return null;
+        }
+
+        actionDialect.addParam("transmitting", true);
+
+        String streamName = fileLabel.getFileName();
+        StreamSlot slot = this.acquireSlot(streamName);
+        try {
+            return this.receive(actionDialect, streamName, slot, output, -1);
+        } finally {
+            this.releaseSlot(streamName, slot);
+        }
+    }
+
+    /**
+     * 下载指定文件码的文件，并将数据直接写入指定通道，不写入本地文件。
+     * 通道由调用者关闭。
+     *
+     * @param domainName 指定域名称。
+     * @param fileCode 指定文件码。
+     * @param channel 指定通道。
+     * @return 返回文件标签。下载失败返回 {@code null} 值。
+     */
+    public FileLabel download(String domainName, String fileCode, WritableByteChannel channel) {
+        return this.download(domainName, fileCode, Channels.newOutputStream(channel));
+    }
+
+    /**
+     * 下载指定文件码的文件的指定范围，并将数据写入指定输出流。输出流由调用者关闭。
+     * 偏移量为负数时表示从文件末尾倒数的位置，长度为负数时表示直到文件末尾。
+     *
+     * @param domainName 指定域名称。
+     * @param fileCode 指定文件码。
+     * @param offset 指定范围的起始偏移量。
+     * @param length 指定范围的长度，超出文件末尾的部分被忽略。
+     * @param output 指定输出流。
+     * @return 返回文件标签。下载失败或范围无效返回 {@code null} 值。
+     */
+    public FileLabel download(String domainName, String fileCode, long offset, long length, OutputStream output) {
+        ActionDialect actionDialect = new ActionDialect(ClientAction.GetFile.name);
+        actionDialect.addParam("domain", domainName);
+        actionDialect.addParam("fileCode", fileCode);
+
+        FileLabel fileLabel = this.request(actionDialect);
+        if (null == fileLabel) {
+            return null;
+        }
+
+        long size = fileLabel.getFileSize();
+        long start = (offset < 0) ? Math.max(0, size + offset) : offset;
+        if (start > size) {
+            Logger.w(this.getClass(), "#download - Invalid range : " + fileCode + " - " + offset + "/" + size);
+            return null;
+        }
+
+        long end = (length < 0) ? size : Math.min(size, start + length);
+        if (end == start) {
+            return fileLabel;
+        }
+
+        return this.receiveRange(domainName, fileLabel, start, end - start, output,
+                new RangeOutputStream(output, start, end - start)) ? fileLabel : null;
+    }
+
+    /**
+     * 将指定文件码的文件分段并行下载到指定文件。
+     * 每个分段是一次独立的范围传输，按偏移量直接写入目标文件。
+     *
+     * @param domainName 指定域名称。
+     * @param fileCode 指定文件码。
+     * @param target 指定目标文件。
+     * @param segments 指定最大分段数量。
+     * @return 返回设置了本地文件的文件标签。任一分段失败时删除目标文件并返回 {@code null} 值。
+     */
+    public FileLabel download(String domainName, String fileCode, File target, int segments) {
+        ActionDialect actionDialect = new ActionDialect(ClientAction.GetFile.name);
+        actionDialect.addParam("domain", domainName);
+        actionDialect.addParam("fileCode", fileCode);
+
+        FileLabel fileLabel = this.request(actionDialect);
+        if (null == fileLabel) {
+            return null;
+        }
+
+        long size = fileLabel.getFileSize();
+        long segmentSize = Math.max(MIN_SEGMENT_SIZE, (size + segments - 1) / Math.max(1, segments));
+        int count = (int) ((size + segmentSize - 1) / segmentSize);
+
+        boolean success = false;
+        try (RandomAccessFile raf = new RandomAccessFile(target, "rw")) {
+            raf.setLength(size);
+            FileChannel channel = raf.getChannel();
+
+            int first = 0;
+            if (count > 1 && !Boolean.TRUE.equals(this.rangeSupported)) {
+                // 先单独传输第一个分段以确认服务器支持范围传输，不支持时以单个数据流接收完整文件
+                success = this.receiveRange(domainName, fileLabel, 0, segmentSize,
+                        new PositionalOutputStream(channel, 0), new PositionalOutputStream(channel, 0));
+                first = (success && Boolean.TRUE.equals(this.rangeSupported)) ? 1 : count;
+            }
+
+            if (count <= 1) {
+                success = (size == 0) || this.receiveRange(domainName, fileLabel, 0, size,
+                        new PositionalOutputStream(channel, 0), new PositionalOutputStream(channel, 0));
+            }
+            else if (first < count) {
+                ExecutorService executor = Executors.newFixedThreadPool(count - first);
+                try {
+                    List<Future<Boolean>> futures = new ArrayList<>(count - first);
+                    for (int i = first; i < count; ++i) {
+                        long start = i * segmentSize;
+                        long length = Math.min(segmentSize, size - start);
+                        OutputStream output = new PositionalOutputStream(channel, start);
+                        futures.add(executor.submit(() -> this.receiveRange(domainName, fileLabel, start, length,
+                                output, output)));
+                    }
+
+                    success = true;
+                    for (Future<Boolean> future : futures) {
+                        try {
+                            success = future.get() && success;
+                        } catch (ExecutionException e) {
+                            Logger.w(this.getClass(), "#download - Segment failed : " + fileCode, e.getCause());
+                            success = false;
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Logger.w(this.getClass(), "#download - Interrupted : " + fileCode);
+                    success = false;
+                } finally {
+                    executor.shutdownNow();
+                }
+            }
+
+            if (success) {
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            Logger.w(this.getClass(), "#download - Write file failed : " + fileCode, e);
+            success = false;
+        }
+
+        if (!success) {
+            target.delete();
+            return null;
+        }
+
+        fileLabel.setFile(target);
+        return fileLabel;
+    }
+
+    /**
+     * 接收指定范围的数据。服务器以“文件码_偏移量”命名范围数据流。
+     * 服务器不支持范围传输时会忽略范围参数并以文件名传输完整数据流，此时由备用输出流接收完整数据。
+     *
+     * @param fallback 服务器不支持范围传输时接收完整数据流的输出流。
+     */
+    private boolean receiveRange(String domainName, FileLabel fileLabel, long offset, long length,
+                                 OutputStream output, OutputStream fallback) {
+        String fileCode = fileLabel.getFileCode();
+
+        ActionDialect actionDialect = new ActionDialect(ClientAction.GetFile.name);
+        actionDialect.addParam("domain", domainName);
+        actionDialect.addParam("fileCode", fileCode);
+        actionDialect.addParam("transmitting", true);
+
+        if (Boolean.FALSE.equals(this.rangeSupported)) {
+            String streamName = fileLabel.getFileName();
+            StreamSlot slot = this.acquireSlot(streamName);
+            try {
+                return null != this.receive(actionDialect, streamName, slot, fallback, -1);
+            } finally {
+                this.releaseSlot(streamName, slot);
+            }
+        }
+
+        actionDialect.addParam("offset", offset);
+        actionDialect.addParam("length", length);
+
+        String streamName = fileCode + "_" + offset;
+        if (Boolean.TRUE.equals(this.rangeSupported)) {
+            StreamSlot slot = this.acquireSlot(streamName);
+            try {
+                return null != this.receive(actionDialect, streamName, slot, output, length);
+            } finally {
+                this.releaseSlot(streamName, slot);
+            }
+        }
+
+        // 尚未确认是否支持范围传输，同时准备接收完整数据流，避免其写入数据目录
+        String wholeName = fileLabel.getFileName();
+        StreamSlot wholeSlot = this.acquireSlot(wholeName);
+        StreamSlot slot = this.acquireSlot(streamName);
+        SinkOutputStream wholeOutput = new SinkOutputStream(fallback);
+        this.setSink(wholeName, wholeSlot, wholeSlot.begin(), wholeOutput);
+        try {
+            if (null != this.receive(actionDialect, streamName, slot, output, length)) {
+                return true;
+            }
+
+            if (!Boolean.FALSE.equals(this.rangeSupported)) {
+                return false;
+            }
+
+            // 服务器忽略了范围参数，等待完整数据流
+            if (!wholeSlot.waitFinished(this.timeout) || null != wholeSlot.error
+                    || wholeSlot.size != fileLabel.getFileSize()) {
+                Logger.w(this.getClass(), "#receiveRange - Fallback failed : " + fileCode);
+                return false;
+            }
+
+            return true;
+        } finally {
+            wholeOutput.abandon();
+            this.receiver.removeStreamSink(wholeName);
+            this.releaseSlot(streamName, slot);
+            this.releaseSlot(wholeName, wholeSlot);
+        }
+    }
+
+    private FileLabel transmit(String domainName, String fileCode) {
+        // 先查询文件标签，以确定流名称
+        ActionDialect actionDialect = new ActionDialect(ClientAction.GetFile.name);
+        actionDialect.addParam("domain", domainName);
+        actionDialect.addParam("fileCode", fileCode);
+
+        FileLabel fileLabel = this.request(actionDialect);
+        if (null == fileLabel) {
+            return null;
+        }
+
+        if (null != this.downloadCache) {
+            // 本地已有相同内容的文件时不再传输
+            File file = this.downloadCache.lookup(fileLabel, this.makeLocalFile(fileCode, fileLabel.getFileName()));
+            if (null != file) {
+                Logger.d(this.getClass(), "#transmit - Cached : " + fileCode);
+                this.lease(file);
+                fileLabel.setFile(file);
+                return fileLabel;
+            }
+        }
+
+        String streamName = fileLabel.getFileName();
+        StreamSlot slot = this.acquireSlot(streamName);
+        FileLabel result = null;
+        FileDigest digest = null;
+        try {
+            for (int attempt = 0; attempt <= this.maxRetries; ++attempt) {
+                result = this.receive(domainName, fileCode, streamName, slot);
+                if (null == result || !this.verifying) {
+                    break;
+                }
+
+                digest = slot.streamDigest;
+                if (this.verify(fileLabel, digest)) {
+                    break;
+                }
+
+                // 数据与标签不一致，丢弃文件后重新传输
+                Logger.w(this.getClass(), "#transmit - Digest mismatch : " + fileCode + " - attempt " + (attempt + 1));
+                this.discard(result.getFile());
+                result = null;
+                digest = null;
+            }
+        } finally {
+            this.releaseSlot(streamName, slot);
+        }
+
+        if (null != result && null != this.downloadCache) {
+            this.downloadCache.store(result, result.getFile(), digest);
+        }
+
+        return result;
+    }
+
+    private boolean verify(FileLabel fileLabel, FileDigest digest) {
+        if (null == fileLabel.getMD5Code() && null == fileLabel.getSHA1Code()) {
+            // 标签没有摘要，无法校验
+            return true;
+        }
+
+        if (null == digest) {
+            return false;
+        }
+
+        return (null == fileLabel.getMD5Code() || fileLabel.getMD5Code().equalsIgnoreCase(digest.md5Code))
+                && (null == fileLabel.getSHA1Code() || fileLabel.getSHA1Code().equalsIgnoreCase(digest.sha1Code));
+    }
+
+    private void pin(File file) {
+        if (null != this.fileStore) {
+            this.fileStore.pin(file);
+        }
+    }
+
+    private void lease(File file) {
+        if (null != this.fileStore) {
+            this.fileStore.lease(file, this.leaseTimeout);
+        }
+    }
+
+    private void discard(File file) {
+        if (null != this.fileStore) {
+            this.fileStore.remove(file);
+        }
+        file.delete();
+    }
+
+    private File makeLocalFile(String fileCode, String fileName) {
+        File dir = new File(new File(this.filePath, DIRECTORY), fileCode);
+        return new File(dir, new File(fileName).getName());
+    }
+
+    private FileLabel receive(String domainName, String fileCode, String streamName, StreamSlot slot) {
+        long generation = slot.begin();
+
+        // 在请求传输之前设置监听器，避免流在监听器就绪前完成
+        this.receiver.setStreamListener(streamName, this.verifying ?
+                new DigestSlotListener(slot, generation) : new SlotListener(slot, generation));
+
+        try {
+            ActionDialect actionDialect = new ActionDialect(ClientAction.GetFile.name);
+            actionDialect.addParam("domain", domainName);
+            actionDialect.addParam("fileCode", fileCode);
+            actionDialect.addParam("transmitting", true);
+
+            FileLabel fileLabel = this.request(actionDialect);
+            if (null == fileLabel) {
+                return null;
+            }
+
+            File streamFile = slot.waitStreamFile(this.timeout);
+            if (null == streamFile) {
+                Logger.w(this.getClass(), "#receive - Timeout : " + fileCode);
+                return null;
+            }
+
+            // 移动到文件码对应的目录，以隔离同名文件
+            File file = this.makeLocalFile(fileCode, streamFile.getName());
+            File dir = file.getParentFile();
+            if (!dir.exists()) {
+                dir.mkdirs();
+            }
+
+            try {
+                Files.move(streamFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                Logger.w(this.getClass(), "#receive - Move file failed : " + fileCode, e);
+                if (null != this.fileStore) {
+                    this.fileStore.unpin(streamFile);
+                }
+                return null;
+            }
+
+            if (null != this.fileStore) {
+                // 先设置租约再记录，记录时触发的淘汰不会删除刚接收的文件
+                this.fileStore.remove(streamFile);
+                this.fileStore.lease(file, this.leaseTimeout);
+                this.fileStore.record(file);
+            }
+
+            // 设置本地文件实例
+            fileLabel.setFile(file);
+            return fileLabel;
+        } finally {
+            this.receiver.removeStreamListener(streamName);
+        }
+    }
+
+    private FileLabel receive(ActionDialect actionDialect, String streamName, StreamSlot slot,
+                              OutputStream output, long length) {
+        String fileCode = actionDialect.getParamAsString("fileCode");
+        SinkOutputStream sinkOutput = new SinkOutputStream(output);
+        long generation = slot.begin();
+
+        // 在请求传输之前设置接收端，避免流在接收端就绪前到达
+        this.setSink(streamName, slot, generation, sinkOutput);
+
+        try {
+            ActionDialect result = this.send(actionDialect);
+            if (null == result) {
+                return null;
+            }
+
+            FileLabel fileLabel = new FileLabel(result.getParamAsJson("fileLabel"));
+
+            if (actionDialect.containsParam("offset")) {
+                // 支持范围传输的服务器回传范围参数
+                boolean supported = result.containsParam("offset");
+                if (!Boolean.valueOf(supported).equals(this.rangeSupported)) {
+                    Logger.i(this.getClass(), "#receive - Range transfer supported : " + supported);
+                    this.rangeSupported = supported;
+                }
+
+                if (!supported) {
+                    return null;
+                }
+            }
+
+            if (!slot.waitFinished(this.timeout)) {
+                Logger.w(this.getClass(), "#receive - Timeout : " + fileCode);
+                return null;
+            }
+
+            if (null != slot.error) {
+                Logger.w(this.getClass(), "#receive - Write failed : " + fileCode, slot.error);
+                return null;
+            }
+
+            long expected = (length < 0) ? fileLabel.getFileSize() : length;
+            if (slot.size != expected) {
+                Logger.w(this.getClass(), "#receive - Size mismatch : " + fileCode + " - "
+                        + slot.size + "/" + expected);
+                return null;
+            }
+
+            return fileLabel;
+        } finally {
+            // 超时后仍在进行的传输不再写入调用者的输出流
+            sinkOutput.abandon();
+            this.receiver.removeStreamSink(streamName);
+        }
+    }
+
+    private void setSink(String streamName, StreamSlot slot, long generation, OutputStream output) {
+        this.receiver.setStreamSink(streamName, new StreamSink() {
+            @Override
+            public OutputStream getOutputStream(String streamName) {
+                return output;
+            }
+
+            @Override
+            public void onCompleted(String streamName, long size) {
+                slot.finish(generation, size, null);
+            }
+
+            @Override
+            public void onFailed(String streamName, IOException exception) {
+                slot.finish(generation, -1, exception);
+            }
+        });
+    }
+
+    private FileLabel request(ActionDialect actionDialect) {
+        ActionDialect result = this.send(actionDialect);
+        return (null != result) ? new FileLabel(result.getParamAsJson("fileLabel")) : null;
+    }
+
+    private ActionDialect send(ActionDialect actionDialect) {
+        // 阻塞线程，并等待返回结果
+        ActionDialect result = this.connector.send(this.receiver.inject(), actionDialect);
+        if (null == result) {
+            Logger.w(this.getClass(), "#send - Timeout : " + actionDialect.getParamAsString("fileCode"));
+            return null;
+        }
+
+        int code = result.getParamAsInt("code");
+        if (code != FileStorageStateCode.Ok.code) {
+            Logger.w(this.getClass(), "#send - error : " + code);
+            return null;
+        }
+
+        return result;
+    }
+
+    private StreamSlot acquireSlot(String streamName) {
+        StreamSlot slot = this.slotMap.compute(streamName, (key, value) -> {
+            StreamSlot current = (null == value) ? new StreamSlot() : value;
+            ++current.references;
+            return current;
+        });
+
+        slot.lock.lock();
+        return slot;
+    }
+
+    private void releaseSlot(String streamName, StreamSlot slot) {
+        slot.lock.unlock();
+
+        this.slotMap.compute(streamName, (key, value) -> {
+            --value.references;
+            return (value.references == 0) ? null : value;
+        });
+    }
+
+    /**
+     * 下载任务，记录传输结果供所有等待者共享。
+     */
+    private class DownloadTask {
+
+        private boolean finished = false;
+
+        private FileLabel fileLabel;
+
+        protected synchronized void finish(FileLabel fileLabel) {
+            this.fileLabel = fileLabel;
+            this.finished = true;
+            this.notifyAll();
+        }
+
+        /**
+         * 等待发起者结束传输。
+         */
+        protected synchronized FileLabel waitResult() {
+            while (!this.finished) {
+                try {
+                    this.wait();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                    break;
+                }
+            }
+
+            return this.fileLabel;
+        }
+    }
+
+    /**
+     * 流传输槽，同名流同一时刻只允许一次传输。
+     * 每次传输使用新的代次，已放弃的传输迟到的完成通知因代次不符被忽略。
+     */
+    private class StreamSlot {
+
+        protected final ReentrantLock lock = new ReentrantLock(true);
+
+        protected int references = 0;
+
+        protected long generation = 0;
+
+        protected File streamFile;
+
+        protected FileDigest streamDigest;
+
+        protected boolean finished = false;
+
+        protected long size = -1;
+
+        protected IOException error;
+
+        /**
+         * 开始新的传输，清除上次传输的结果。
+         *
+         * @return 返回本次传输的代次。
+         */
+        protected synchronized long begin() {
+            this.streamFile = null;
+            this.streamDigest = null;
+            this.finished = false;
+            this.size = -1;
+            this.error = null;
+            return ++this.generation;
+        }
+
+        protected synchronized boolean isCurrent(long generation) {
+            return this.generation == generation;
+        }
+
+        protected synchronized void finish(long generation, long size, IOException error) {
+            if (generation != this.generation) {
+                return;
+            }
+
+            this.size = size;
+            this.error = error;
+            this.finished = true;
+            this.notifyAll();
+        }
+
+        protected synchronized boolean waitFinished(long timeout) {
+            long deadline = System.currentTimeMillis() + timeout;
+            while (!this.finished) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+
+                try {
+                    this.wait(remaining);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                    break;
+                }
+            }
+
+            boolean result = this.finished;
+            this.finished = false;
+            return result;
+        }
+
+        protected synchronized File waitStreamFile(long timeout) {
+            long deadline = System.currentTimeMillis() + timeout;
+            while (null == this.streamFile) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+
+                try {
+                    this.wait(remaining);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                    break;
+                }
+            }
+
+            return this.streamFile;
+        }
+    }
+
+    /**
+     * 流传输槽的监听器，流完成时唤醒等待的线程。
+     */
+    private class SlotListener implements StreamListener {
+
+        protected final StreamSlot slot;
+
+        protected final long generation;
+
+        protected SlotListener(StreamSlot slot, long generation) {
+            this.slot = slot;
+            this.generation = generation;
+        }
+
+        @Override
+        public void onStarted(String streamName) {
+            // Nothing
+        }
+
+        @Override
+        public void onCompleted(String streamName, File streamFile) {
+            synchronized (this.slot) {
+                if (!this.slot.isCurrent(this.generation)) {
+                    return;
+                }
+
+                // 接收器在回调返回后解除固定，在移动到文件码目录之前保持固定
+                pin(streamFile);
+                this.slot.streamFile = streamFile;
+                this.slot.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * 需要写入时计算摘要的流传输槽监听器。
+     */
+    private class DigestSlotListener extends SlotListener implements DigestStreamListener {
+
+        protected DigestSlotListener(StreamSlot slot, long generation) {
+            super(slot, generation);
+        }
+
+        @Override
+        public void onCompleted(String streamName, File streamFile, FileDigest digest) {
+            synchronized (this.slot) {
+                if (!this.slot.isCurrent(this.generation)) {
+                    return;
+                }
+
+                pin(streamFile);
+                this.slot.streamDigest = digest;
+                this.slot.streamFile = streamFile;
+                this.slot.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * 从指定位置开始写入文件通道的输出流，支持多个输出流并发写入同一通道的不同区域。
+     */
+    private class PositionalOutputStream extends OutputStream {
+
+        private final FileChannel channel;
+
+        private long position;
+
+        protected PositionalOutputStream(FileChannel channel, long position) {
+            this.channel = channel;
+            this.position = position;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            this.write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+            while (buffer.hasRemaining()) {
+                this.position += this.channel.write(buffer, this.position);
+            }
+        }
+    }
+
+    /**
+     * 只写入完整数据中指定范围的输出流，范围之外的数据被丢弃。
+     */
+    private class RangeOutputStream extends OutputStream {
+
+        private final OutputStream output;
+
+        private final long start;
+
+        private final long end;
+
+        private long position = 0;
+
+        protected RangeOutputStream(OutputStream output, long offset, long length) {
+            this.output = output;
+            this.start = offset;
+            this.end = offset + length;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            this.write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            long from = Math.max(this.position, this.start);
+            long to = Math.min(this.position + length, this.end);
+            if (from < to) {
+                this.output.write(bytes, offset + (int) (from - this.position), (int) (to - from));
+            }
+            this.position += length;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            this.output.flush();
+        }
+    }
+
+    /**
+     * 写入调用者输出流的包装流。放弃后拒绝写入，且不关闭调用者的输出流。
+     */
+    private class SinkOutputStream extends OutputStream {
+
+        private final OutputStream output;
+
+        private boolean abandoned = false;
+
+        protected SinkOutputStream(OutputStream output) {
+            this.output = output;
+        }
+
+        protected synchronized void abandon() {
+            this.abandoned = true;
+        }
+
+        @Override
+        public synchronized void write(int b) throws IOException {
+            this.checkAbandoned();
+            this.output.write(b);
+        }
+
+        @Override
+        public synchronized void write(byte[] bytes, int offset, int length) throws IOException {
+            this.checkAbandoned();
+            this.output.write(bytes, offset, length);
+        }
+
+        @Override
+        public synchronized void flush() throws IOException {
+            this.checkAbandoned();
+            this.output.flush();
+        }
+
+        private void checkAbandoned() throws IOException {
+            if (this.abandoned) {
+                throw new IOException("Download abandoned");
+            }
+        }
+    }
+}
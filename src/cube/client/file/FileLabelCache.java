@@ -0,0 +1,296 @@
+/*
+ * This source file is part of Cube.
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2023 Cube Team.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cube.client.file;
+
+import cube.common.entity.FileLabel;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 文件标签缓存。
+ * 按域和文件码缓存服务器返回的文件标签，有效期内的查询不再访问服务器。
+ * 缓存数量超过限制时淘汰最久未访问的标签。缓存保存标签的 JSON 数据，每次读取返回新的标签实例，
+ * 调用者修改返回的标签不影响缓存。
+ */
+public class FileLabelCache {
+
+    /**
+     * 默认最大缓存数量。
+     */
+    public final static int DEFAULT_MAX_SIZE = 10000;
+
+    /**
+     * 默认有效期。
+     */
+    public final static long DEFAULT_TTL = 5 * 60 * 1000;
+
+    private final int maxSize;
+
+    private volatile long ttl;
+
+    private final LinkedHashMap<String, Entry> entries;
+
+    /**
+     * 域和文件码到缓存键的索引，同一标签可能按文件码和本地文件分别缓存。
+     */
+    private final Map<String, Set<String>> fileCodeIndex;
+
+    private final AtomicLong hitCount = new AtomicLong(0);
+
+    private final AtomicLong missCount = new AtomicLong(0);
+
+    public FileLabelCache() {
+        this(DEFAULT_MAX_SIZE, DEFAULT_TTL);
+    }
+
+    /**
+     * 构造函数。
+     *
+     * @param maxSize 指定最大缓存数量。
+     * @param ttl 指定标签有效期，单位：毫秒。
+     */
+    public FileLabelCache(int maxSize, long ttl) {
+        this.maxSize = maxSize;
+        this.ttl = ttl;
+        this.fileCodeIndex = new HashMap<>();
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > FileLabelCache.this.maxSize) {
+                    unindex(eldest.getKey(), eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * 设置标签有效期。
+     *
+     * @param ttl 指定有效期，单位：毫秒。设置为 {@code 0} 时不再缓存。
+     */
+    public void setTTL(long ttl) {
+        this.ttl = ttl;
+    }
+
+    public long getTTL() {
+        return this.ttl;
+    }
+
+    /**
+     * 获取指定文件码的标签。
+     *
+     * @param domain 指定域。
+     * @param fileCode 指定文件码。
+     * @return 返回文件标签，未缓存或已过期时返回 {@code null} 。
+     */
+    public FileLabel get(String domain, String fileCode) {
+        return this.lookup(makeKey(domain, fileCode));
+    }
+
+    /**
+     * 缓存文件标签。
+     *
+     * @param domain 指定域。
+     * @param fileLabel 指定文件标签。
+     */
+    public void put(String domain, FileLabel fileLabel) {
+        this.store(makeKey(domain, fileLabel.getFileCode()), fileLabel);
+    }
+
+    /**
+     * 获取本地文件对应的标签。按文件名、大小和修改时间匹配。
+     *
+     * @param domain 指定域。
+     * @param contactId 指定联系人 ID 。
+     * @param file 指定本地文件。
+     * @return 返回文件标签，未缓存或已过期时返回 {@code null} 。
+     */
+    public FileLabel get(String domain, Long contactId, File file) {
+        return this.lookup(makeKey(domain, contactId, file));
+    }
+
+    /**
+     * 缓存本地文件对应的标签。
+     *
+     * @param domain 指定域。
+     * @param contactId 指定联系人 ID 。
+     * @param file 指定本地文件。
+     * @param fileLabel 指定文件标签。
+     */
+    public void put(String domain, Long contactId, File file, FileLabel fileLabel) {
+        this.store(makeKey(domain, contactId, file), fileLabel);
+    }
+
+    /**
+     * 移除指定文件码的标签，包括按本地文件缓存的同一标签。
+     *
+     * @param domain 指定域。
+     * @param fileCode 指定文件码。
+     */
+    public void invalidate(String domain, String fileCode) {
+        synchronized (this.entries) {
+            Set<String> keys = this.fileCodeIndex.remove(makeKey(domain, fileCode));
+            if (null != keys) {
+                for (String key : keys) {
+                    this.entries.remove(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * 清空缓存。
+     */
+    public void clear() {
+        synchronized (this.entries) {
+            this.entries.clear();
+            this.fileCodeIndex.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (this.entries) {
+            return this.entries.size();
+        }
+    }
+
+    public long getHitCount() {
+        return this.hitCount.get();
+    }
+
+    public long getMissCount() {
+        return this.missCount.get();
+    }
+
+    private FileLabel lookup(String key) {
+        JSONObject data = null;
+
+        synchronized (this.entries) {
+            Entry entry = this.entries.get(key);
+            if (null != entry) {
+                if (entry.expiry > System.currentTimeMillis()) {
+                    data = entry.data;
+                }
+                else {
+                    this.entries.remove(key);
+                    this.unindex(key, entry);
+                }
+            }
+        }
+
+        if (null == data) {
+            this.missCount.incrementAndGet();
+            return null;
+        }
+
+        this.hitCount.incrementAndGet();
+        return new FileLabel(data);
+    }
+
+    private void store(String key, FileLabel fileLabel) {
+        long ttl = this.ttl;
+        if (ttl <= 0) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        long expiry = now + ttl;
+        if (fileLabel.getExpiryTime() > 0) {
+            // 标签自身有过期时间时不超过该时间
+            if (fileLabel.getExpiryTime() <= now) {
+                return;
+            }
+            expiry = Math.min(expiry, fileLabel.getExpiryTime());
+        }
+
+        String domain = key.substring(0, key.indexOf(':'));
+        Entry entry = new Entry(domain, fileLabel.getFileCode(), fileLabel.toJSON(), expiry);
+        synchronized (this.entries) {
+            Entry previous = this.entries.put(key, entry);
+            if (null != previous) {
+                this.unindex(key, previous);
+            }
+
+            String fileKey = makeKey(domain, entry.fileCode);
+            Set<String> keys = this.fileCodeIndex.get(fileKey);
+            if (null == keys) {
+                keys = new HashSet<>();
+                this.fileCodeIndex.put(fileKey, keys);
+            }
+            keys.add(key);
+        }
+    }
+
+    /**
+     * 从索引里移除缓存键。调用者需持有缓存锁。
+     */
+    private void unindex(String key, Entry entry) {
+        String fileKey = makeKey(entry.domain, entry.fileCode);
+        Set<String> keys = this.fileCodeIndex.get(fileKey);
+        if (null != keys) {
+            keys.remove(key);
+            if (keys.isEmpty()) {
+                this.fileCodeIndex.remove(fileKey);
+            }
+        }
+    }
+
+    private static String makeKey(String domain, String fileCode) {
+        return domain + ":" + fileCode;
+    }
+
+    private static String makeKey(String domain, Long contactId, File file) {
+        return domain + ":" + contactId + "/" + file.getName() + "/" + file.length() + "/" + file.lastModified();
+    }
+
+    private static class Entry {
+
+        protected final String domain;
+
+        protected final String fileCode;
+
+        protected final JSONObject data;
+
+        protected final long expiry;
+
+        protected Entry(String domain, String fileCode, JSONObject data, long expiry) {
+            this.domain = domain;
+            this.fileCode = fileCode;
+            this.data = data;
+            this.expiry = expiry;
+        }
+    }
+}
@@ -31,6 +31,8 @@ import cell.util.Utils;
 import cell.util.log.Logger;
 import cube.auth.AuthToken;
 import cube.client.*;
+import cube.client.listener.BulkDownloadListener;
+import cube.client.listener.BulkUploadListener;
 import cube.client.listener.FileUploadListener;
 import cube.client.listener.WorkflowListener;
 import cube.client.tool.TokenHelper;
@@ -50,16 +52,21 @@ import cube.util.FileUtils;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 /**
  * 文件处理器。
@@ -74,17 +81,57 @@ public class FileProcessor {
 
     private FileUploader uploader;
 
+    private FileDownloader downloader;
+
     private Long contactId;
 
     private String domainName;
 
+    /**
+     * 是否按内容摘要检查文件是否已存在。
+     */
+    private boolean deduplication = false;
+
+    /**
+     * 文件摘要缓存。
+     */
+    private DigestCache digestCache;
+
+    /**
+     * 媒体源地址的缓存有效期。
+     */
+    private final static long MEDIA_SOURCE_TTL = 5 * 60 * 1000;
+
+    private PooledHttpClient httpClient;
+
+    /**
+     * HTTP 客户端是否由当前处理器创建，创建者负责关闭。
+     */
+    private boolean ownHttpClient;
+
+    /**
+     * 准备 M3U8 流文件时的读取超时，服务器在应答前完成转码。为 {@code 0} 时不限制。
+     */
+    private int m3u8ReadTimeout = 0;
+
+    private HLSSegmentCache segmentCache;
+
+    private FileLabelCache fileLabelCache;
+
     protected WorkflowListener workflowListener;
 
     public FileProcessor(File filePath, Connector connector, Receiver receiver) {
+        this(filePath, connector, receiver, new FileUploader(connector));
+    }
+
+    public FileProcessor(File filePath, Connector connector, Receiver receiver, FileUploader uploader) {
         this.filePath = filePath;
         this.connector = connector;
         this.receiver = receiver;
-        this.uploader = new FileUploader(connector);
+        this.uploader = uploader;
+        this.downloader = new FileDownloader(filePath, connector, receiver);
+        this.httpClient = new PooledHttpClient();
+        this.ownHttpClient = true;
     }
 
     public void setContactId(Long contactId) {
@@ -95,10 +142,141 @@ public class FileProcessor {
         this.domainName = domainName;
     }
 
+    public void setFileStore(LocalFileStore fileStore) {
+        this.downloader.setFileStore(fileStore);
+    }
+
+    /**
+     * 设置下载缓存。
+     *
+     * @param downloadCache 指定下载缓存。
+     */
+    public void setDownloadCache(DownloadCache downloadCache) {
+        this.downloader.setDownloadCache(downloadCache);
+    }
+
     public File getFilePath() {
         return this.filePath;
     }
 
+    /**
+     * 设置 HTTP 客户端，多个文件处理器可以共享同一个客户端的连接和缓存。
+     * 需要在发起请求之前设置，共享的客户端由调用者关闭。
+     *
+     * @param httpClient 指定 HTTP 客户端。
+     */
+    public void setHttpClient(PooledHttpClient httpClient) {
+        if (this.ownHttpClient && this.httpClient != httpClient) {
+            this.httpClient.close();
+        }
+
+        this.httpClient = httpClient;
+        this.ownHttpClient = false;
+    }
+
+    /**
+     * 关闭文件处理器，释放自行创建的 HTTP 客户端。
+     */
+    public void close() {
+        if (this.ownHttpClient) {
+            this.httpClient.close();
+        }
+    }
+
+    /**
+     * 获取 HTTP 客户端。
+     *
+     * @return 返回 HTTP 客户端。
+     */
+    public PooledHttpClient getHttpClient() {
+        return this.httpClient;
+    }
+
+    /**
+     * 设置准备 M3U8 流文件时的读取超时。默认不限制。
+     *
+     * @param readTimeout 读取超时，单位：毫秒，为 {@code 0} 时不限制。
+     */
+    public void setM3U8ReadTimeout(int readTimeout) {
+        this.m3u8ReadTimeout = readTimeout;
+    }
+
+    /**
+     * 设置文件标签缓存。
+     *
+     * @param fileLabelCache 指定文件标签缓存，设置为 {@code null} 时不缓存标签。
+     */
+    public void setFileLabelCache(FileLabelCache fileLabelCache) {
+        this.fileLabelCache = fileLabelCache;
+    }
+
+    /**
+     * 设置 HLS 分片缓存。
+     *
+     * @param segmentCache 指定分片缓存。
+     */
+    public void setSegmentCache(HLSSegmentCache segmentCache) {
+        this.segmentCache = segmentCache;
+    }
+
+    /**
+     * 获取 HLS 分片缓存。未设置时在数据目录下创建默认的分片缓存。
+     *
+     * @return 返回分片缓存。
+     */
+    public synchronized HLSSegmentCache getSegmentCache() {
+        if (null == this.segmentCache) {
+            this.segmentCache = new HLSSegmentCache(new File(this.filePath, HLSSegmentCache.DIRECTORY),
+                    HLSSegmentCache.DEFAULT_MAX_SIZE, this.httpClient);
+        }
+        return this.segmentCache;
+    }
+
+    /**
+     * 设置是否启用内容去重。启用后上传前先计算文件摘要，服务器上存在相同内容的文件时不再上传。
+     *
+     * @param deduplication 是否启用内容去重。
+     */
+    public void setDeduplication(boolean deduplication) {
+        this.deduplication = deduplication;
+    }
+
+    /**
+     * 设置文件摘要缓存，用于内容去重时避免重复计算摘要。
+     *
+     * @param digestCache 指定文件摘要缓存。
+     */
+    public void setDigestCache(DigestCache digestCache) {
+        this.digestCache = digestCache;
+    }
+
+    /**
+     * 是否启用了内容去重。
+     *
+     * @return 如果启用了内容去重返回 {@code true} 。
+     */
+    public boolean isDeduplication() {
+        return this.deduplication;
+    }
+
+    /**
+     * 获取文件上传器。
+     *
+     * @return 返回文件上传器。
+     */
+    public FileUploader getFileUploader() {
+        return this.uploader;
+    }
+
+    /**
+     * 获取文件下载器。
+     *
+     * @return 返回文件下载器。
+     */
+    public FileDownloader getFileDownloader() {
+        return this.downloader;
+    }
+
     /**
      * 注册工作流监听器。
      *
@@ -126,6 +304,14 @@ public class FileProcessor {
      * @return
      */
     public FileLabel getFileLabel(String fileCode) {
+        FileLabelCache cache = this.fileLabelCache;
+        if (null != cache) {
+            FileLabel fileLabel = cache.get(this.domainName, fileCode);
+            if (null != fileLabel) {
+                return fileLabel;
+            }
+        }
+
         ActionDialect actionDialect = new ActionDialect(ClientAction.GetFile.name);
         actionDialect.addParam("domain", this.domainName);
         actionDialect.addParam("fileCode", fileCode);
@@ -140,7 +326,11 @@ public class FileProcessor {
         }
 
         JSONObject data = result.getParamAsJson("fileLabel");
-        return new FileLabel(data);
+        FileLabel fileLabel = new FileLabel(data);
+        if (null != cache) {
+            cache.put(this.domainName, fileLabel);
+        }
+        return fileLabel;
     }
 
     /**
@@ -150,6 +340,14 @@ public class FileProcessor {
      * @return
      */
     public FileLabel getFileLabel(File file) {
+        FileLabelCache cache = this.fileLabelCache;
+        if (null != cache) {
+            FileLabel fileLabel = cache.get(this.domainName, this.contactId, file);
+            if (null != fileLabel) {
+                return fileLabel;
+            }
+        }
+
         ActionDialect actionDialect = new ActionDialect(ClientAction.FindFile.name);
         actionDialect.addParam("domain", this.domainName);
         actionDialect.addParam("contactId", this.contactId.longValue());
@@ -159,7 +357,11 @@ public class FileProcessor {
 
         ActionDialect result = this.connector.send(this.receiver.inject(), actionDialect);
         if (result.getParamAsInt("code") == FileStorageStateCode.Ok.code) {
-            return new FileLabel(result.getParamAsJson("fileLabel"));
+            FileLabel fileLabel = new FileLabel(result.getParamAsJson("fileLabel"));
+            if (null != cache) {
+                cache.put(this.domainName, this.contactId, file, fileLabel);
+            }
+            return fileLabel;
         }
 
         return null;
@@ -232,56 +434,87 @@ public class FileProcessor {
 
     /**
      * 下载指定文件码的文件。
+     * 同一文件码的并发下载将合并为一次传输。返回的本地文件在调用 {@link #releaseFile(FileLabel)}
+     * 或租约到期之前不会被本地文件存储淘汰。
      *
      * @param fileCode
      * @return
      */
     public FileLabel downloadFile(String fileCode) {
-        ActionDialect actionDialect = new ActionDialect(ClientAction.GetFile.name);
-        actionDialect.addParam("domain", this.domainName);
-        actionDialect.addParam("fileCode", fileCode);
-        actionDialect.addParam("transmitting", true);
-
-        // 阻塞线程，并等待返回结果
-        ActionDialect result = this.connector.send(this.receiver.inject(), actionDialect);
-
-        int code = result.getParamAsInt("code");
-        if (code != FileStorageStateCode.Ok.code) {
-            Logger.w(FileProcessor.class, "#downloadFile - error : " + code);
-            return null;
-        }
-
-        JSONObject data = result.getParamAsJson("fileLabel");
-        FileLabel fileLabel = new FileLabel(data);
+        return this.downloader.download(this.domainName, fileCode);
+    }
 
-        this.receiver.setStreamListener(fileLabel.getFileName(), new StreamListener() {
-            @Override
-            public void onStarted(String streamName) {
-                // Nothing
-            }
+    /**
+     * 释放下载文件的租约，调用者不再使用本地文件后调用。
+     *
+     * @param fileLabel 指定由 {@link #downloadFile(String)} 返回的文件标签。
+     */
+    public void releaseFile(FileLabel fileLabel) {
+        this.downloader.release(fileLabel);
+    }
 
-            @Override
-            public void onCompleted(String streamName, File streamFile) {
-                synchronized (fileLabel) {
-                    fileLabel.notify();
-                }
-            }
-        });
+    /**
+     * 下载指定文件码的文件，并将数据直接写入指定输出流，例如 HTTP 应答的输出流。
+     * 数据不写入本地文件，输出流由调用者关闭。
+     *
+     * @param fileCode
+     * @param output
+     * @return 返回未设置本地文件的文件标签。
+     */
+    public FileLabel downloadFile(String fileCode, OutputStream output) {
+        return this.downloader.download(this.domainName, fileCode, output);
+    }
 
-        synchronized (fileLabel) {
-            try {
-                fileLabel.wait(5 * 60 * 1000);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        }
+    /**
+     * 下载指定文件码的文件，并将数据直接写入指定通道。
+     * 数据不写入本地文件，通道由调用者关闭。
+     *
+     * @param fileCode
+     * @param channel
+     * @return 返回未设置本地文件的文件标签。
+     */
+    public FileLabel downloadFile(String fileCode, WritableByteChannel channel) {
+        return this.downloader.download(this.domainName, fileCode, channel);
+    }
 
-        this.receiver.removeStreamListener(fileLabel.getFileName());
+    /**
+     * 下载指定文件码的文件的指定范围，并将数据写入指定输出流。
+     * 偏移量为负数时表示从文件末尾倒数，例如读取日志末尾；长度为负数时表示直到文件末尾。
+     *
+     * @param fileCode
+     * @param offset
+     * @param length
+     * @param output
+     * @return 返回未设置本地文件的文件标签。
+     */
+    public FileLabel downloadFile(String fileCode, long offset, long length, OutputStream output) {
+        return this.downloader.download(this.domainName, fileCode, offset, length, output);
+    }
 
-        // 设置本地文件实例
-        fileLabel.setFile(new File(this.filePath, fileLabel.getFileName()));
+    /**
+     * 读取指定文件码的文件的指定范围，例如读取文件头识别文件类型。
+     *
+     * @param fileCode
+     * @param offset
+     * @param length
+     * @return 返回读取到的数据，失败时返回 {@code null} 值。
+     */
+    public byte[] readFile(String fileCode, long offset, int length) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(Math.max(0, length));
+        FileLabel fileLabel = this.downloader.download(this.domainName, fileCode, offset, length, output);
+        return (null != fileLabel) ? output.toByteArray() : null;
+    }
 
-        return fileLabel;
+    /**
+     * 将指定文件码的文件分段并行下载到指定文件。
+     *
+     * @param fileCode
+     * @param target
+     * @param segments 最大分段数量。
+     * @return 返回设置了本地文件的文件标签。
+     */
+    public FileLabel downloadFile(String fileCode, File target, int segments) {
+        return this.downloader.download(this.domainName, fileCode, target, segments);
     }
 
     /**
@@ -296,7 +529,13 @@ public class FileProcessor {
         actionDialect.addParam("fileCode", fileLabel.getFileCode());
 
         ActionDialect result = this.connector.send(this.receiver.inject(), actionDialect);
-        if (result.getParamAsInt("code") == FileStorageStateCode.Ok.code) {
+
+        // 应答后再移除缓存，避免并发的查询在删除完成前重新缓存标签。删除失败时标签状态未知，同样移除
+        if (null != this.fileLabelCache) {
+            this.fileLabelCache.invalidate(this.domainName, fileLabel.getFileCode());
+        }
+
+        if (null != result && result.getParamAsInt("code") == FileStorageStateCode.Ok.code) {
             return new FileLabel(result.getParamAsJson("fileLabel"));
         }
 
@@ -304,13 +543,15 @@ public class FileProcessor {
     }
 
     /**
+     * 获取指定文件的媒体源地址。有效期内的媒体源地址从缓存返回。
+     * 服务器拒绝令牌时移除缓存的令牌，下次请求使用新令牌。
      *
      * @param dispatcherHttpAddress
      * @param fileCode
      * @return
      */
     public String getMediaSource(String dispatcherHttpAddress, String fileCode) {
-        AuthToken authToken = TokenHelper.getAuthToken(this.connector, this.receiver, this.contactId);
+        AuthToken authToken = TokenHelper.getAuthToken(this.connector, this.receiver, this.domainName, this.contactId);
         if (null == authToken) {
             return null;
         }
@@ -322,51 +563,50 @@ public class FileProcessor {
         buf.append("&fc=");
         buf.append(fileCode);
 
-        BufferedReader reader = null;
+        // 地址里的令牌会更新，使用文件码作为缓存键
+        String cacheKey = dispatcherHttpAddress + "#" + fileCode;
 
         try {
-            URL url = new URL(buf.toString());
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestProperty("Charset", "UTF-8");
-            connection.setRequestProperty("Content-Type", "application/json");
-            connection.setDoOutput(false);
-            connection.setDoInput(true);
-            connection.setUseCaches(true);
-            connection.setRequestMethod("GET");
-            connection.setConnectTimeout(5000);
-            // 连接
-            connection.connect();
-            int code = connection.getResponseCode();
-            if (code == HttpURLConnection.HTTP_OK) {
-                buf.delete(0, buf.length());
-
-                reader = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-                String line = null;
-                while ((line = reader.readLine()) != null) {
-                    buf.append(line);
-                }
+            // 与 M3U8 请求相同，服务器可能需要较长时间应答，不限制读取时长
+            PooledHttpClient.Response response = this.httpClient.get(buf.toString(), cacheKey, MEDIA_SOURCE_TTL, 0);
+            if (!response.isSuccessful()) {
+                Logger.w(FileProcessor.class, "#getMediaSource - Request failed : " + response.code);
+                this.checkTokenRejected(response.code);
+                return null;
             }
 
-            connection.disconnect();
-        } catch (MalformedURLException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            if (null != reader) {
-                try {
-                    reader.close();
-                } catch (IOException e) {
-                }
+            String body = response.getBodyAsString().trim();
+            if (body.length() > 3) {
+                JSONObject result = new JSONObject(body);
+                return result.getString("url");
             }
+        } catch (IOException e) {
+            Logger.w(FileProcessor.class, "#getMediaSource - " + fileCode, e);
         }
 
-        if (buf.length() > 3) {
-            JSONObject result = new JSONObject(buf.toString());
-            return result.getString("url");
+        return null;
+    }
+
+    /**
+     * 服务器拒绝令牌时移除缓存的令牌。
+     *
+     * @param code HTTP 应答码。
+     */
+    private void checkTokenRejected(int code) {
+        if (code == HttpURLConnection.HTTP_UNAUTHORIZED || code == HttpURLConnection.HTTP_FORBIDDEN) {
+            TokenHelper.invalidateAuthToken(this.connector, this.domainName, this.contactId);
         }
+    }
 
-        return null;
+    /**
+     * 异步获取指定文件的媒体源地址。
+     *
+     * @param dispatcherHttpAddress
+     * @param fileCode
+     * @return
+     */
+    public CompletableFuture<String> getMediaSourceAsync(String dispatcherHttpAddress, String fileCode) {
+        return this.httpClient.submit(() -> this.getMediaSource(dispatcherHttpAddress, fileCode));
     }
 
     /**
@@ -377,71 +617,33 @@ public class FileProcessor {
      * @return
      */
     public String prepareM3U8(String fileCode, String dispatcherHttpAddress) {
-        FileLabel fileLabel = this.getFileLabel(fileCode);
-        if (null == fileLabel) {
-            Logger.w(FileProcessor.class, "#prepareM3U8 - No file label : " + fileCode);
-            return null;
-        }
-
-        String sourceURL = this.getMediaSource(dispatcherHttpAddress, fileLabel.getFileCode());
+        String sourceURL = this.makeM3U8URL(fileCode, dispatcherHttpAddress);
         if (null == sourceURL) {
-            Logger.w(FileProcessor.class, "#prepareM3U8 - Can NOT gets media source : " + fileLabel.getFileCode());
             return null;
         }
 
-        // 获取令牌
-        AuthToken authToken = TokenHelper.getAuthToken(this.connector, this.receiver, this.contactId);
-
-        StringBuilder buf = new StringBuilder(sourceURL);
-        buf.append("?t=");
-        buf.append(authToken.getCode());
-        sourceURL = buf.toString();
-
-        HttpURLConnection connection = null;
-        BufferedReader reader = null;
         boolean success = false;
 
         long time = System.currentTimeMillis();
 
         // 访问 M3U8 文件
         try {
-            URL url = new URL(sourceURL);
-            connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestProperty("Charset", "UTF-8");
-            connection.setRequestProperty("Connection", "keep-alive");
-            connection.setDoOutput(false);
-            connection.setDoInput(true);
-            connection.setUseCaches(true);
-            connection.setRequestMethod("GET");
-            connection.setConnectTimeout(5000);
-            // 连接
-            connection.connect();
-            int code = connection.getResponseCode();
-            if (code == HttpURLConnection.HTTP_OK) {
+            PooledHttpClient.Response response = this.httpClient.get(sourceURL, this.m3u8ReadTimeout);
+            if (response.isSuccessful()) {
                 success = true;
 
-                reader = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-                String line = null;
-                while ((line = reader.readLine()) != null) {
-                    Logger.d(FileProcessor.class, "[M3U8] " + line);
+                if (Logger.isDebugLevel()) {
+                    for (String line : response.getBodyAsString().split("\n")) {
+                        Logger.d(FileProcessor.class, "[M3U8] " + line);
+                    }
                 }
             }
             else {
-                Logger.w(FileProcessor.class, "#prepareM3U8 - Request failed : " + code);
+                Logger.w(FileProcessor.class, "#prepareM3U8 - Request failed : " + response.code);
+                this.checkTokenRejected(response.code);
             }
-        } catch (MalformedURLException e) {
-            e.printStackTrace();
         } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            if (null != reader) {
-                try {
-                    reader.close();
-                } catch (IOException e) {
-                }
-            }
-
-            connection.disconnect();
+            Logger.w(FileProcessor.class, "#prepareM3U8 - " + fileCode, e);
         }
 
         Logger.d(FileProcessor.class, "#prepareM3U8 - Elapsed : " + (System.currentTimeMillis() - time));
@@ -449,6 +651,68 @@ public class FileProcessor {
         return success ? sourceURL : null;
     }
 
+    /**
+     * 为指定的文件准备 M3U8 流文件，并在后台预取前若干个分片到本地分片缓存。
+     * 边缘代理通过 {@link #getSegmentCache()} 读取已缓存的分片。
+     *
+     * @param fileCode
+     * @param dispatcherHttpAddress
+     * @param prefetchSegments 预取的分片数量。
+     * @return 返回解析后的播放列表，失败时返回 {@code null} 。
+     */
+    public HLSSegmentCache.Playlist prepareM3U8(String fileCode, String dispatcherHttpAddress, int prefetchSegments) {
+        String sourceURL = this.makeM3U8URL(fileCode, dispatcherHttpAddress);
+        if (null == sourceURL) {
+            return null;
+        }
+
+        long time = System.currentTimeMillis();
+
+        HLSSegmentCache.Playlist playlist = null;
+        try {
+            playlist = this.getSegmentCache().prepare(sourceURL, prefetchSegments, this.m3u8ReadTimeout);
+        } catch (IOException e) {
+            Logger.w(FileProcessor.class, "#prepareM3U8 - " + fileCode, e);
+        }
+
+        Logger.d(FileProcessor.class, "#prepareM3U8 - Elapsed : " + (System.currentTimeMillis() - time));
+
+        return playlist;
+    }
+
+    private String makeM3U8URL(String fileCode, String dispatcherHttpAddress) {
+        FileLabel fileLabel = this.getFileLabel(fileCode);
+        if (null == fileLabel) {
+            Logger.w(FileProcessor.class, "#prepareM3U8 - No file label : " + fileCode);
+            return null;
+        }
+
+        String sourceURL = this.getMediaSource(dispatcherHttpAddress, fileLabel.getFileCode());
+        if (null == sourceURL) {
+            Logger.w(FileProcessor.class, "#prepareM3U8 - Can NOT gets media source : " + fileLabel.getFileCode());
+            return null;
+        }
+
+        // 获取令牌
+        AuthToken authToken = TokenHelper.getAuthToken(this.connector, this.receiver, this.domainName, this.contactId);
+        if (null == authToken) {
+            return null;
+        }
+
+        return sourceURL + "?t=" + authToken.getCode();
+    }
+
+    /**
+     * 异步为指定的文件准备 M3U8 流文件。
+     *
+     * @param fileCode
+     * @param dispatcherHttpAddress
+     * @return
+     */
+    public CompletableFuture<String> prepareM3U8Async(String fileCode, String dispatcherHttpAddress) {
+        return this.httpClient.submit(() -> this.prepareM3U8(fileCode, dispatcherHttpAddress));
+    }
+
     /**
      * 对指定文件进行操作。
      *
@@ -463,6 +727,49 @@ public class FileProcessor {
             return null;
         }
 
+        return this.process(fileProcessing, fileLabel);
+    }
+
+    /**
+     * 对输入流里的数据进行操作。数据直接上传，不写入临时文件。
+     *
+     * @param fileProcessing
+     * @param fileName 指定文件名。
+     * @param length 指定数据长度。
+     * @param input 指定输入流，上传结束后关闭。
+     * @return
+     */
+    public FileProcessResult call(FileProcessing fileProcessing, String fileName, long length, InputStream input) {
+        FileLabel fileLabel = this.uploadWithLabel(fileName, (listener) ->
+                this.uploader.upload(this.contactId, this.domainName, fileName, length, input, listener), null);
+        if (null == fileLabel) {
+            Logger.i(FileProcessor.class, "#call - Can NOT upload data : " + fileName);
+            return null;
+        }
+
+        return this.process(fileProcessing, fileLabel);
+    }
+
+    /**
+     * 对缓冲区里的数据进行操作。数据直接上传，不写入临时文件。
+     *
+     * @param fileProcessing
+     * @param fileName 指定文件名。
+     * @param buffer 指定缓冲区。
+     * @return
+     */
+    public FileProcessResult call(FileProcessing fileProcessing, String fileName, ByteBuffer buffer) {
+        FileLabel fileLabel = this.uploadWithLabel(fileName, (listener) ->
+                this.uploader.upload(this.contactId, this.domainName, fileName, buffer, listener), null);
+        if (null == fileLabel) {
+            Logger.i(FileProcessor.class, "#call - Can NOT upload data : " + fileName);
+            return null;
+        }
+
+        return this.process(fileProcessing, fileLabel);
+    }
+
+    private FileProcessResult process(FileProcessing fileProcessing, FileLabel fileLabel) {
         ActionDialect actionDialect = new ActionDialect(ClientAction.ProcessFile.name);
         actionDialect.addParam("domain", this.domainName);
         actionDialect.addParam("fileCode", fileLabel.getFileCode());
@@ -610,124 +917,268 @@ public class FileProcessor {
 
     /**
      * 检查文件，如果文件在服务器上不存在则上传。
+     * 启用内容去重时按文件摘要检查，服务器上存在相同内容的文件时直接返回该文件的标签。
      *
      * @param file
      * @return
      */
     public FileLabel checkWithUploadStrategy(File file) {
+        return this.checkWithUploadStrategy(file, null);
+    }
+
+    /**
+     * 检查文件，如果文件在服务器上不存在则上传。
+     *
+     * @param file
+     * @param listener 上传进度监听器，可以为 {@code null} 。
+     * @return
+     */
+    public FileLabel checkWithUploadStrategy(File file, FileUploadListener listener) {
+        FileLabel fileLabel = null;
+        try {
+            fileLabel = this.findFile(file);
+        } catch (IOException e) {
+            Logger.e(this.getClass(), "#checkWithUploadStrategy - " + e.getMessage());
+            return null;
+        }
+
+        if (null != fileLabel) {
+            return fileLabel;
+        }
+
+        return this.uploadWithLabel(file, listener);
+    }
+
+    /**
+     * 批量上传文件。服务器上已存在的文件不再上传。
+     *
+     * @param files 文件列表。
+     * @param parallelism 同时上传的文件数量，不超过上传器的工作线程数量 {@link FileUploader#getMaxWorkers()} ，
+     *                    需要更高并发时先调用 {@link FileUploader#setMaxWorkers(int)} 。
+     * @param listener 批量上传监听器，为 {@code null} 时通过 {@link BulkUpload#poll(long)} 取出文件标签。
+     * @return 返回批量上传任务。
+     */
+    public BulkUpload uploadFiles(Collection<File> files, int parallelism, BulkUploadListener listener) {
+        BulkUpload bulkUpload = new BulkUpload(this, files, parallelism, listener);
+        bulkUpload.start();
+        return bulkUpload;
+    }
+
+    /**
+     * 批量上传目录里的文件。服务器上已存在的文件不再上传。
+     *
+     * @param directory 指定目录。
+     * @param recursive 是否包含子目录。
+     * @param parallelism 同时上传的文件数量，不超过上传器的工作线程数量 {@link FileUploader#getMaxWorkers()} ，
+     *                    需要更高并发时先调用 {@link FileUploader#setMaxWorkers(int)} 。
+     * @param listener 批量上传监听器，为 {@code null} 时通过 {@link BulkUpload#poll(long)} 取出文件标签。
+     * @return 返回批量上传任务。
+     */
+    public BulkUpload uploadDirectory(File directory, boolean recursive, int parallelism,
+                                      BulkUploadListener listener) {
+        return this.uploadFiles(BulkUpload.listFiles(directory, recursive), parallelism, listener);
+    }
+
+    /**
+     * 以默认并发数批量下载文件。
+     *
+     * @param fileCodes 指定文件码列表。
+     * @return 返回批量下载任务。
+     */
+    public BulkDownload downloadFiles(Collection<String> fileCodes) {
+        return this.downloadFiles(fileCodes, BulkDownload.DEFAULT_PARALLELISM, null);
+    }
+
+    /**
+     * 批量下载文件。同一文件码的并发下载会合并为一次传输，本地已有的相同内容不再传输。
+     *
+     * @param fileCodes 指定文件码列表。
+     * @param parallelism 同时下载的文件数量。
+     * @param listener 批量下载监听器，为 {@code null} 时通过 {@link BulkDownload#poll(long)} 取出文件标签。
+     * @return 返回批量下载任务。
+     */
+    public BulkDownload downloadFiles(Collection<String> fileCodes, int parallelism,
+                                      BulkDownloadListener listener) {
+        BulkDownload bulkDownload = new BulkDownload(this, fileCodes, parallelism, listener);
+        bulkDownload.start();
+        return bulkDownload;
+    }
+
+    /**
+     * 查找服务器上的文件。启用内容去重时按文件摘要查找，否则按文件名、大小和修改时间查找。
+     *
+     * @param file
+     * @return 返回服务器上的文件标签，文件不存在时返回 {@code null} 。
+     * @throws IOException 读取文件或者查询失败时抛出。
+     */
+    protected FileLabel findFile(File file) throws IOException {
         ActionDialect actionDialect = new ActionDialect(ClientAction.FindFile.name);
         actionDialect.addParam("domain", this.domainName);
         actionDialect.addParam("contactId", this.contactId.longValue());
-        actionDialect.addParam("fileName", file.getName());
-        actionDialect.addParam("fileSize", file.length());
-        actionDialect.addParam("lastModified", file.lastModified());
+
+        FileDigest digest = null;
+        if (this.deduplication) {
+            digest = (null != this.digestCache) ? this.digestCache.compute(file) : FileDigest.compute(file);
+            actionDialect.addParam("fileSize", file.length());
+            actionDialect.addParam("md5", digest.md5Code);
+            actionDialect.addParam("sha1", digest.sha1Code);
+        }
+        else {
+            actionDialect.addParam("fileName", file.getName());
+            actionDialect.addParam("fileSize", file.length());
+            actionDialect.addParam("lastModified", file.lastModified());
+        }
 
         ActionDialect result = this.connector.send(this.receiver.inject(), actionDialect);
         if (null == result || !result.containsParam("code")) {
-            Logger.e(this.getClass(), "#checkWithUploadStrategy - State error");
-            return null;
+            throw new IOException("State error");
         }
 
-        MutableFileLabel mutableFileLabel = new MutableFileLabel();
-
         int code = result.getParamAsInt("code");
         if (code != FileStorageStateCode.Ok.code) {
-            Logger.i(FileProcessor.class, "#checkWithUploadStrategy - Not find file : " + file.getName());
+            Logger.i(FileProcessor.class, "#findFile - Not find file : " + file.getName());
+            return null;
+        }
 
-            Promise.create(new PromiseHandler<FileUploader.UploadMeta>() {
-                @Override
-                public void emit(PromiseFuture<FileUploader.UploadMeta> promise) {
-                    // 上传文件数据
-                    uploader.upload(contactId, domainName, file, new FileUploadListener() {
-                        @Override
-                        public void onUploading(FileUploader.UploadMeta meta, long processedSize) {
-                            Logger.d(FileProcessor.class, "#checkWithUploadStrategy - onUploading : " +
-                                    FileUtils.scaleFileSize(processedSize) + "/" +
-                                    FileUtils.scaleFileSize(meta.file.length()));
-                        }
+        FileLabel fileLabel = new FileLabel(result.getParamAsJson("fileLabel"));
+        if (null != digest) {
+            // 摘要的十六进制大小写可能不同，标签没有摘要时不能确认内容相同
+            String md5Code = fileLabel.getMD5Code();
+            String sha1Code = fileLabel.getSHA1Code();
+            if (null == md5Code || null == sha1Code
+                    || !digest.md5Code.equalsIgnoreCase(md5Code) || !digest.sha1Code.equalsIgnoreCase(sha1Code)) {
+                // 服务器不支持按摘要查找时返回的标签与内容不符
+                Logger.w(FileProcessor.class, "#findFile - Digest mismatch : " + file.getName());
+                return null;
+            }
 
-                        @Override
-                        public void onCompleted(FileUploader.UploadMeta meta) {
-                            Logger.i(FileProcessor.class, "#checkWithUploadStrategy - onCompleted : " + meta.fileCode);
-                            promise.resolve(meta);
-                        }
+            Logger.i(FileProcessor.class, "#findFile - Reuse " + fileLabel.getFileCode() + " for " + file.getName());
+        }
 
-                        @Override
-                        public void onFailed(FileUploader.UploadMeta meta, Throwable throwable) {
-                            Logger.w(FileProcessor.class, "#checkWithUploadStrategy - onFailed : " + file.getName(), throwable);
-                            promise.reject(meta);
-                        }
-                    });
-                }
-            }).then(new Future<FileUploader.UploadMeta>() {
-                @Override
-                public void come(FileUploader.UploadMeta meta) {
-                    // 放置文件
-                    FileLabel fileLabel = putFileLabel(meta.fileCode, meta.file, meta.getMD5Code(), meta.getSHA1Code());
-                    if (null == fileLabel) {
-                        // 放置标签失败
-                        synchronized (mutableFileLabel) {
-                            mutableFileLabel.notify();
+        return fileLabel;
+    }
+
+    /**
+     * 上传文件并放置文件标签。
+     *
+     * @param file
+     * @param listener 上传进度监听器，可以为 {@code null} 。
+     * @return
+     */
+    protected FileLabel uploadWithLabel(File file, FileUploadListener listener) {
+        return this.uploadWithLabel(file, listener, null);
+    }
+
+    /**
+     * 上传文件并放置文件标签。任务提交到上传器后立即回调，此时任务可能仍在排队，可以通过文件码取消。
+     *
+     * @param file
+     * @param listener 上传进度监听器，可以为 {@code null} 。
+     * @param submitted 任务提交后的回调，可以为 {@code null} 。
+     * @return
+     */
+    protected FileLabel uploadWithLabel(File file, FileUploadListener listener,
+                                        Consumer<FileUploader.UploadMeta> submitted) {
+        return this.uploadWithLabel(file.getName(), (uploadListener) -> {
+            FileUploader.UploadMeta meta = this.uploader.upload(this.contactId, this.domainName, file, uploadListener);
+            if (null != submitted) {
+                submitted.accept(meta);
+            }
+            return meta;
+        }, listener);
+    }
+
+    /**
+     * 启动上传并放置文件标签。
+     *
+     * @param fileName 文件名。
+     * @param starter 使用指定监听器启动上传。
+     * @param listener 上传进度监听器，可以为 {@code null} 。
+     * @return
+     */
+    private FileLabel uploadWithLabel(String fileName, Function<FileUploadListener, FileUploader.UploadMeta> starter,
+                                      FileUploadListener listener) {
+        MutableFileLabel mutableFileLabel = new MutableFileLabel();
+
+        Promise.create(new PromiseHandler<FileUploader.UploadMeta>() {
+            @Override
+            public void emit(PromiseFuture<FileUploader.UploadMeta> promise) {
+                // 上传文件数据
+                starter.apply(new FileUploadListener() {
+                    @Override
+                    public void onUploading(FileUploader.UploadMeta meta, long processedSize) {
+                        Logger.d(FileProcessor.class, "#checkWithUploadStrategy - onUploading : " +
+                                FileUtils.scaleFileSize(processedSize) + "/" +
+                                FileUtils.scaleFileSize(meta.fileSize));
+                        if (null != listener) {
+                            listener.onUploading(meta, processedSize);
                         }
-                        return;
                     }
 
-                    // 上传完成，查询文件标签
-                    fileLabel = getFileLabel(fileLabel.getFileCode());
-                    if (null == fileLabel) {
-                        synchronized (mutableFileLabel) {
-                            mutableFileLabel.notify();
+                    @Override
+                    public void onCompleted(FileUploader.UploadMeta meta) {
+                        Logger.i(FileProcessor.class, "#checkWithUploadStrategy - onCompleted : " + meta.fileCode);
+                        if (null != listener) {
+                            listener.onCompleted(meta);
                         }
-                        return;
+                        promise.resolve(meta);
                     }
 
-                    // 赋值
-                    mutableFileLabel.value = fileLabel;
-
-                    synchronized (mutableFileLabel) {
-                        mutableFileLabel.notify();
-                    }
-                }
-            }).catchReject(new Future<FileUploader.UploadMeta>() {
-                @Override
-                public void come(FileUploader.UploadMeta meta) {
-                    synchronized (mutableFileLabel) {
-                        mutableFileLabel.notify();
+                    @Override
+                    public void onFailed(FileUploader.UploadMeta meta, Throwable throwable) {
+                        Logger.w(FileProcessor.class, "#checkWithUploadStrategy - onFailed : " + fileName, throwable);
+                        if (null != listener) {
+                            listener.onFailed(meta, throwable);
+                        }
+                        promise.reject(meta);
                     }
-                }
-            }).launch();
-
-            synchronized (mutableFileLabel) {
-                try {
-                    mutableFileLabel.wait(10 * 60 * 1000);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
+                });
             }
-        }
-        else {
-            mutableFileLabel.value = new FileLabel(result.getParamAsJson("fileLabel"));
-        }
+        }).then(new Future<FileUploader.UploadMeta>() {
+            @Override
+            public void come(FileUploader.UploadMeta meta) {
+                // 放置文件，应答里没有已注册的完整标签时再查询标签
+                FileLabel fileLabel = putFileLabel(meta);
+                mutableFileLabel.complete(fileLabel);
+            }
+        }).catchReject(new Future<FileUploader.UploadMeta>() {
+            @Override
+            public void come(FileUploader.UploadMeta meta) {
+                mutableFileLabel.complete(null);
+            }
+        }).launch();
 
-        return mutableFileLabel.value;
+        return mutableFileLabel.waitCompleted(10 * 60 * 1000);
     }
 
-    private FileLabel putFileLabel(String fileCode, File file, String md5Code, String sha1Code) {
+    private FileLabel putFileLabel(FileUploader.UploadMeta meta) {
+        String fileCode = meta.fileCode;
+
         // 判断文件类型
-        FileType fileType = FileUtils.extractFileExtensionType(file.getName());
+        FileType fileType = FileUtils.extractFileExtensionType(meta.fileName);
 
         FileLabel fileLabel = new FileLabel(this.domainName, fileCode,
-                this.contactId, file.getName(), file.length(), file.lastModified(), System.currentTimeMillis(),
+                this.contactId, meta.fileName, meta.fileSize, meta.lastModified, System.currentTimeMillis(),
                 0);
         fileLabel.setFileType(fileType);
-        fileLabel.setMD5Code(md5Code);
-        fileLabel.setSHA1Code(sha1Code);
+        fileLabel.setMD5Code(meta.getMD5Code());
+        fileLabel.setSHA1Code(meta.getSHA1Code());
 
         ActionDialect actionDialect = new ActionDialect(ClientAction.PutFile.name);
         actionDialect.addParam("fileLabel", fileLabel.toJSON());
+        if (null != meta.getCompression()) {
+            // 服务器按指定算法解压缩已接收的数据流
+            actionDialect.addParam("compression", meta.getCompression());
+        }
 
         // 阻塞线程，并等待返回结果
         ActionDialect result = this.connector.send(this.receiver.inject(), actionDialect);
+
+        // 应答后再移除缓存，无论结果如何
+        if (null != this.fileLabelCache) {
+            this.fileLabelCache.invalidate(this.domainName, fileCode);
+        }
+
         if (null == result) {
             return null;
         }
@@ -739,6 +1190,15 @@ public class FileProcessor {
         }
 
         JSONObject data = result.getParamAsJson("fileLabel");
-        return new FileLabel(data);
+        if (null == data || !data.has("fileURL")) {
+            // 应答里没有已生成访问地址的标签，查询已注册的标签
+            return this.getFileLabel(fileCode);
+        }
+
+        FileLabel registered = new FileLabel(data);
+        if (null != this.fileLabelCache) {
+            this.fileLabelCache.put(this.domainName, registered);
+        }
+        return registered;
     }
 }
@@ -2,9 +2,7 @@ package cube.client.file;
 
 import cell.core.talk.dialect.ActionDialect;
 import cell.util.log.Logger;
-import cube.client.ActionListener;
 import cube.client.Client;
-import cube.client.Notifier;
 import cube.common.action.ClientAction;
 import cube.common.entity.FileLabel;
 import cube.common.entity.FileStoragePerformance;
@@ -19,7 +17,6 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * 文件存储服务访问接口。
@@ -100,69 +97,46 @@ public class FileStorage {
      * @return 返回符合条件的文件列表。如果查找时发生错误返回 {@code null} 值。
      */
     public List<FileLabel> searchFiles(long contactId, String domainName, long beginTime, long endTime) {
+        return this.collect(this.iterateFiles(contactId, domainName, beginTime, endTime, Integer.MAX_VALUE),
+                "#searchFiles");
+    }
+
+    /**
+     * 按照时间检索文件，文件标签到达后即可读取。
+     *
+     * @param contactId 指定联系人 ID 。
+     * @param domainName 指定访问域名称。
+     * @param beginTime 指定开始时间戳。
+     * @param endTime 指定结束时间戳。
+     * @return 返回文件标签迭代器。如果参数无效或客户端未就绪返回 {@code null} 值。
+     */
+    public SearchIterator<FileLabel> iterateFiles(long contactId, String domainName, long beginTime, long endTime) {
+        return this.iterateFiles(contactId, domainName, beginTime, endTime, SearchIterator.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * 按指定的缓冲区容量创建检索迭代器。
+     *
+     * @param capacity 指定缓冲区容量，读取全部结果时使用 {@link Integer#MAX_VALUE} 。
+     */
+    private SearchIterator<FileLabel> iterateFiles(long contactId, String domainName, long beginTime, long endTime,
+                                                   int capacity) {
         if (endTime <= beginTime || !this.client.isReady()) {
             return null;
         }
 
-        List<FileLabel> list = new ArrayList<>();
-
-        AtomicInteger total = new AtomicInteger(0);
-        Notifier notifier = this.client.getReceiver().inject();
-
         ActionDialect actionDialect = new ActionDialect(ClientAction.ListFiles.name);
         actionDialect.addParam(NoticeData.PARAMETER, new ListFiles(contactId, domainName, beginTime,
                 endTime));
 
-        ActionListener actionListener = new ActionListener() {
-            @Override
-            public void onAction(ActionDialect actionDialect) {
-                JSONObject notifierJson = actionDialect.getParamAsJson(Notifier.AsyncParamName);
-                if (notifier.equals(notifierJson)) {
-                    JSONObject data = actionDialect.getParamAsJson(NoticeData.DATA);
+        SearchIterator<FileLabel> iterator = new SearchIterator<>(this.client, ClientAction.ListFiles.name,
+                actionDialect, (data) -> {
                     FileLabel fileLabel = new FileLabel(data);
-                    list.add(fileLabel);
-
-                    if (total.get() == list.size()) {
-                        synchronized (list) {
-                            list.notify();
-                        }
-                    }
-                }
-            }
-        };
-        this.client.getReceiver().addActionListener(ClientAction.ListFiles.name, actionListener);
-
-        ActionDialect result = this.client.getConnector().send(notifier, actionDialect);
-        if (null == result) {
-            // 移除监听器
-            this.client.getReceiver().removeActionListener(ClientAction.ListFiles.name, actionListener);
-            Logger.w(this.getClass(), "#searchFiles - Network error");
-            return null;
-        }
-
-        if (result.getParamAsInt(NoticeData.CODE) == FileStorageStateCode.Ok.code) {
-            JSONObject data = result.getParamAsJson(NoticeData.DATA);
-            total.set(data.getInt("total"));
-        }
-
-        if (total.get() == 0) {
-            // 移除监听器
-            this.client.getReceiver().removeActionListener(ClientAction.ListFiles.name, actionListener);
-            return list;
-        }
-
-        synchronized (list) {
-            try {
-                list.wait(60 * 60 * 1000);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        }
-
-        // 移除监听器
-        this.client.getReceiver().removeActionListener(ClientAction.ListFiles.name, actionListener);
-
-        return list;
+                    this.client.getFileLabelCache().put(domainName, fileLabel);
+                    return fileLabel;
+                }, capacity, SearchIterator.DEFAULT_TIMEOUT);
+        iterator.start();
+        return iterator;
     }
 
     /**
@@ -176,68 +150,45 @@ public class FileStorage {
      * @return 返回搜索到的分享标签列表，如果查找时发生错误返回 {@code null} 值。
      */
     public List<SharingTag> searchSharingTags(long contactId, String domainName, long beginTime, long endTime, boolean valid) {
+        return this.collect(this.iterateSharingTags(contactId, domainName, beginTime, endTime, valid, Integer.MAX_VALUE),
+                "#searchSharingTags");
+    }
+
+    /**
+     * 按照时间检索分享标签数据，分享标签到达后即可读取。
+     *
+     * @param contactId 指定联系人 ID 。
+     * @param domainName 指定访问域名称。
+     * @param beginTime 指定开始时间戳。
+     * @param endTime 指定结束时间戳。
+     * @param valid 指定是否是有效的标签。
+     * @return 返回分享标签迭代器。如果参数无效返回 {@code null} 值。
+     */
+    public SearchIterator<SharingTag> iterateSharingTags(long contactId, String domainName, long beginTime,
+                                                         long endTime, boolean valid) {
+        return this.iterateSharingTags(contactId, domainName, beginTime, endTime, valid,
+                SearchIterator.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * 按指定的缓冲区容量创建检索迭代器。
+     *
+     * @param capacity 指定缓冲区容量，读取全部结果时使用 {@link Integer#MAX_VALUE} 。
+     */
+    private SearchIterator<SharingTag> iterateSharingTags(long contactId, String domainName, long beginTime,
+                                                          long endTime, boolean valid, int capacity) {
         if (endTime <= beginTime) {
             return null;
         }
 
-        List<SharingTag> list = new ArrayList<>();
-
-        AtomicInteger total = new AtomicInteger(0);
-        Notifier notifier = this.client.getReceiver().inject();
-
         ActionDialect actionDialect = new ActionDialect(ClientAction.ListSharingTags.name);
         actionDialect.addParam(NoticeData.PARAMETER, new ListSharingTags(contactId, domainName, beginTime,
                 endTime, valid));
 
-        ActionListener actionListener = new ActionListener() {
-            @Override
-            public void onAction(ActionDialect actionDialect) {
-                JSONObject notifierJson = actionDialect.getParamAsJson(Notifier.AsyncParamName);
-                if (notifier.equals(notifierJson)) {
-                    JSONObject data = actionDialect.getParamAsJson("data");
-                    SharingTag tag = new SharingTag(data);
-                    list.add(tag);
-
-                    if (total.get() == list.size()) {
-                        synchronized (list) {
-                            list.notify();
-                        }
-                    }
-                }
-            }
-        };
-        this.client.getReceiver().addActionListener(ClientAction.ListSharingTags.name, actionListener);
-
-        ActionDialect result = this.client.getConnector().send(notifier, actionDialect);
-        if (null == result) {
-            // 移除监听器
-            this.client.getReceiver().removeActionListener(ClientAction.ListSharingTags.name, actionListener);
-            Logger.w(this.getClass(), "#searchSharingTags - Network error");
-            return null;
-        }
-
-        if (result.getParamAsInt("code") == FileStorageStateCode.Ok.code) {
-            JSONObject data = result.getParamAsJson("data");
-            total.set(data.getInt("total"));
-        }
-
-        if (total.get() == 0) {
-            // 移除监听器
-            this.client.getReceiver().removeActionListener(ClientAction.ListSharingTags.name, actionListener);
-            return list;
-        }
-
-        synchronized (list) {
-            try {
-                list.wait(60 * 60 * 1000);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        }
-
-        // 移除监听器
-        this.client.getReceiver().removeActionListener(ClientAction.ListSharingTags.name, actionListener);
-        return list;
+        SearchIterator<SharingTag> iterator = new SearchIterator<>(this.client, ClientAction.ListSharingTags.name,
+                actionDialect, SharingTag::new, capacity, SearchIterator.DEFAULT_TIMEOUT);
+        iterator.start();
+        return iterator;
     }
 
     /**
@@ -375,67 +326,42 @@ public class FileStorage {
      * @return 返回搜索到的访问记录列表，如果查找时发生错误返回 {@code null} 值。
      */
     public List<VisitTrace> searchVisitTraces(long contactId, String domainName, long beginTime, long endTime) {
+        return this.collect(this.iterateVisitTraces(contactId, domainName, beginTime, endTime, Integer.MAX_VALUE),
+                "#searchVisitTraces");
+    }
+
+    /**
+     * 按照时间检索访问痕迹数据，访问痕迹到达后即可读取。
+     *
+     * @param contactId 指定联系人 ID 。
+     * @param domainName 指定访问域名称。
+     * @param beginTime 指定开始时间戳。
+     * @param endTime 指定结束时间戳。
+     * @return 返回访问痕迹迭代器。如果参数无效返回 {@code null} 值。
+     */
+    public SearchIterator<VisitTrace> iterateVisitTraces(long contactId, String domainName, long beginTime,
+                                                         long endTime) {
+        return this.iterateVisitTraces(contactId, domainName, beginTime, endTime, SearchIterator.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * 按指定的缓冲区容量创建检索迭代器。
+     *
+     * @param capacity 指定缓冲区容量，读取全部结果时使用 {@link Integer#MAX_VALUE} 。
+     */
+    private SearchIterator<VisitTrace> iterateVisitTraces(long contactId, String domainName, long beginTime,
+                                                          long endTime, int capacity) {
         if (endTime <= beginTime) {
             return null;
         }
 
-        List<VisitTrace> list = new ArrayList<>();
-
-        AtomicInteger total = new AtomicInteger(0);
-        Notifier notifier = this.client.getReceiver().inject();
-
         ActionDialect actionDialect = new ActionDialect(ClientAction.ListSharingTraces.name);
         actionDialect.addParam(NoticeData.PARAMETER, new ListSharingTraces(contactId, domainName, beginTime, endTime));
 
-        ActionListener actionListener = new ActionListener() {
-            @Override
-            public void onAction(ActionDialect actionDialect) {
-                JSONObject notifierJson = actionDialect.getParamAsJson(Notifier.AsyncParamName);
-                if (notifier.equals(notifierJson)) {
-                    JSONObject data = actionDialect.getParamAsJson("data");
-                    VisitTrace trace = new VisitTrace(data);
-                    list.add(trace);
-
-                    if (total.get() == list.size()) {
-                        synchronized (list) {
-                            list.notify();
-                        }
-                    }
-                }
-            }
-        };
-        this.client.getReceiver().addActionListener(ClientAction.ListSharingTraces.name, actionListener);
-
-        ActionDialect result = this.client.getConnector().send(notifier, actionDialect);
-        if (null == result) {
-            // 移除监听器
-            this.client.getReceiver().removeActionListener(ClientAction.ListSharingTraces.name, actionListener);
-            Logger.w(this.getClass(), "#searchVisitTraces - Network error");
-            return null;
-        }
-
-        if (result.getParamAsInt("code") == FileStorageStateCode.Ok.code) {
-            JSONObject data = result.getParamAsJson("data");
-            total.set(data.getInt("total"));
-        }
-
-        if (total.get() == 0) {
-            // 移除监听器
-            this.client.getReceiver().removeActionListener(ClientAction.ListSharingTraces.name, actionListener);
-            return list;
-        }
-
-        synchronized (list) {
-            try {
-                list.wait(60 * 60 * 1000);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        }
-
-        // 移除监听器
-        this.client.getReceiver().removeActionListener(ClientAction.ListSharingTraces.name, actionListener);
-        return list;
+        SearchIterator<VisitTrace> iterator = new SearchIterator<>(this.client, ClientAction.ListSharingTraces.name,
+                actionDialect, VisitTrace::new, capacity, SearchIterator.DEFAULT_TIMEOUT);
+        iterator.start();
+        return iterator;
     }
 
     /**
@@ -531,4 +457,29 @@ public class FileStorage {
             return value.intValue();
         }
     }
+
+    /**
+     * 读取迭代器的全部结果。
+     *
+     * @param iterator 指定检索结果迭代器。
+     * @param method 调用方法名，用于日志。
+     * @return 返回结果列表，请求失败时返回 {@code null} 值。
+     */
+    private <T> List<T> collect(SearchIterator<T> iterator, String method) {
+        if (null == iterator) {
+            return null;
+        }
+
+        List<T> list = new ArrayList<>();
+        while (iterator.hasNext()) {
+            list.add(iterator.next());
+        }
+
+        if (iterator.isFailed()) {
+            Logger.w(this.getClass(), method + " - Network error");
+            return null;
+        }
+
+        return list;
+    }
 }
@@ -27,101 +27,1387 @@
 package cube.client.file;
 
 import cell.core.talk.PrimitiveOutputStream;
+import cell.core.talk.dialect.ActionDialect;
+import cell.util.log.Logger;
 import cube.client.Connector;
+import cube.client.Receiver;
 import cube.client.listener.FileUploadListener;
+import cube.client.util.BandwidthShaper;
+import cube.common.state.FileStorageStateCode;
 import cube.util.FileUtils;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 
 /**
  * 文件上传器。
+ * 上传任务进入优先级队列，由固定数量的工作线程执行，相同优先级的任务按提交顺序执行。
+ * 较大的文件以流水线方式上传，读取、发送和摘要计算并行进行。
+ * 设置检查点目录后启用断点续传，大文件分块发送，每块由服务器确认后记录检查点。
  */
 public class FileUploader {
 
+    /**
+     * 普通优先级。
+     */
+    public final static int PRIORITY_NORMAL = 0;
+
+    /**
+     * 高优先级。
+     */
+    public final static int PRIORITY_HIGH = 10;
+
+    /**
+     * 低优先级。
+     */
+    public final static int PRIORITY_LOW = -10;
+
+    /**
+     * 流水线上每个任务的缓冲块数量。
+     */
+    private final static int PIPELINE_DEPTH = 3;
+
+    /**
+     * 使用内存映射读取的文件大小阈值。
+     */
+    private final static long MAPPED_THRESHOLD = 32L * 1024 * 1024;
+
+    /**
+     * 内存映射窗口大小。
+     */
+    private final static long MAPPED_WINDOW_SIZE = 64L * 1024 * 1024;
+
+    /**
+     * 确认文件分块的动作名。
+     */
+    public final static String ACTION_PUT_FILE_CHUNK = "PutFileChunk";
+
+    /**
+     * 断点续传的分块大小。
+     */
+    private final static long CHUNK_SIZE = 8L * 1024 * 1024;
+
+    /**
+     * 分块发送失败时的最大重试次数。
+     */
+    private final static int MAX_CHUNK_RETRIES = 5;
+
+    /**
+     * 默认的分条传输文件大小阈值。
+     */
+    private final static long DEFAULT_STRIPE_THRESHOLD = 256L * 1024 * 1024;
+
     private Connector connector;
 
-    private int bufferSize = 128 * 1024;
+    private Receiver receiver;
+
+    /**
+     * 断点续传检查点目录，为 {@code null} 时不启用断点续传。
+     */
+    private File checkpointDirectory;
+
+    /**
+     * 文件摘要缓存，缓存命中的文件不再计算摘要。
+     */
+    private DigestCache digestCache;
+
+    /**
+     * 上传带宽整形器。
+     */
+    private BandwidthShaper bandwidthShaper;
+
+    /**
+     * 是否压缩可压缩的文件。
+     */
+    private boolean compressionEnabled = false;
+
+    /**
+     * 分条传输时并行发送的数据流数量，小于 {@code 2} 时不启用分条传输。
+     */
+    private int stripes = 1;
+
+    /**
+     * 启用分条传输的文件大小阈值。
+     */
+    private long stripeThreshold = DEFAULT_STRIPE_THRESHOLD;
+
+    private int bufferSize = 128 * 1024;
+
+    /**
+     * 流名称对应的上传器。
+     */
+    private Map<String, UploadMeta> uploadMetaMap;
+
+    /**
+     * 是否已停止接收新的上传任务。
+     */
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    /**
+     * 执行上传任务的线程池。
+     */
+    private ThreadPoolExecutor executor;
+
+    /**
+     * 流水线预读数据的线程池。
+     */
+    private ExecutorService readerExecutor;
+
+    /**
+     * 计算摘要的线程池。
+     */
+    private ExecutorService digestExecutor;
+
+    /**
+     * 任务提交序号，用于保证同优先级任务的先后顺序。
+     */
+    private final AtomicLong sequence = new AtomicLong(0);
+
+    /**
+     * 未完成任务的文件总大小。
+     */
+    private final AtomicLong totalSize = new AtomicLong(0);
+
+    /**
+     * 未完成任务已处理的数据大小。
+     */
+    private final AtomicLong processedSize = new AtomicLong(0);
+
+    private final AtomicLong completedCount = new AtomicLong(0);
+
+    private final AtomicLong failedCount = new AtomicLong(0);
+
+    public FileUploader(Connector connector) {
+        this(connector, 4);
+    }
+
+    /**
+     * 构造函数。指定接收器后可启用断点续传。
+     *
+     * @param connector 指定连接器。
+     * @param receiver 指定接收器。
+     */
+    public FileUploader(Connector connector, Receiver receiver) {
+        this(connector, 4);
+        this.receiver = receiver;
+    }
+
+    /**
+     * 构造函数。
+     *
+     * @param connector 指定连接器。
+     * @param maxWorkers 指定最大工作线程数量。
+     */
+    public FileUploader(Connector connector, int maxWorkers) {
+        this.connector = connector;
+        this.uploadMetaMap = new ConcurrentHashMap<>();
+
+        AtomicInteger count = new AtomicInteger(0);
+        this.executor = new ThreadPoolExecutor(maxWorkers, maxWorkers, 60, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<>(), (runnable) -> {
+            Thread thread = new Thread(runnable, "FileUploader-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+
+        AtomicInteger readerCount = new AtomicInteger(0);
+        this.readerExecutor = Executors.newCachedThreadPool((runnable) -> {
+            Thread thread = new Thread(runnable, "FileUploader-Reader-" + readerCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        AtomicInteger digestCount = new AtomicInteger(0);
+        this.digestExecutor = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()),
+                (runnable) -> {
+            Thread thread = new Thread(runnable, "FileUploader-Digest-" + digestCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 设置最大工作线程数量。
+     *
+     * @param maxWorkers 指定最大工作线程数量。
+     */
+    public void setMaxWorkers(int maxWorkers) {
+        if (maxWorkers < 1) {
+            return;
+        }
+
+        if (maxWorkers > this.executor.getMaximumPoolSize()) {
+            this.executor.setMaximumPoolSize(maxWorkers);
+            this.executor.setCorePoolSize(maxWorkers);
+        }
+        else {
+            this.executor.setCorePoolSize(maxWorkers);
+            this.executor.setMaximumPoolSize(maxWorkers);
+        }
+    }
+
+    /**
+     * 设置断点续传检查点目录。设置为 {@code null} 时关闭断点续传。
+     * 启用后大于分块大小的文件分块上传，中断后再次上传同一文件时从最后确认的分块继续。
+     *
+     * @param directory 指定检查点目录。
+     */
+    public void setCheckpointDirectory(File directory) {
+        if (null != directory && null == this.receiver) {
+            Logger.w(this.getClass(), "#setCheckpointDirectory - No receiver, resumable upload is unavailable");
+            return;
+        }
+
+        this.checkpointDirectory = directory;
+    }
+
+    /**
+     * 设置文件摘要缓存。
+     *
+     * @param digestCache 指定文件摘要缓存。
+     */
+    public void setDigestCache(DigestCache digestCache) {
+        this.digestCache = digestCache;
+    }
+
+    /**
+     * 设置上传带宽整形器。
+     *
+     * @param bandwidthShaper 指定带宽整形器。
+     */
+    public void setBandwidthShaper(BandwidthShaper bandwidthShaper) {
+        this.bandwidthShaper = bandwidthShaper;
+    }
+
+    /**
+     * 设置是否压缩上传可压缩的文件。服务器支持解压缩上传数据时才能启用。
+     * 启用后文本、日志和旧版办公文档等文件以 Deflate 格式发送，已压缩的媒体和归档文件不压缩，断点续传的文件不压缩。
+     *
+     * @param enabled 是否启用压缩。
+     */
+    public void setCompressionEnabled(boolean enabled) {
+        this.compressionEnabled = enabled;
+    }
+
+    /**
+     * 是否启用了压缩上传。
+     *
+     * @return 如果启用了压缩上传返回 {@code true} 。
+     */
+    public boolean isCompressionEnabled() {
+        return this.compressionEnabled;
+    }
+
+    /**
+     * 设置分条传输。大于阈值的文件被划分为多个分块，由多个数据流并行发送，服务器按偏移量重组文件，
+     * 最后由文件标签的摘要校验整个文件。
+     *
+     * @param stripes 并行发送的数据流数量，小于 {@code 2} 时关闭分条传输。
+     * @param threshold 启用分条传输的文件大小阈值。
+     */
+    public void setStriping(int stripes, long threshold) {
+        if (stripes > 1 && null == this.receiver) {
+            Logger.w(this.getClass(), "#setStriping - No receiver, striped upload is unavailable");
+            return;
+        }
+
+        this.stripes = Math.max(1, stripes);
+        this.stripeThreshold = threshold;
+    }
+
+    /**
+     * 获取分条传输的数据流数量。
+     *
+     * @return 返回分条传输的数据流数量。
+     */
+    public int getStripes() {
+        return this.stripes;
+    }
+
+    /**
+     * 是否启用了断点续传。
+     *
+     * @return 如果启用了断点续传返回 {@code true} 。
+     */
+    public boolean isResumable() {
+        return null != this.checkpointDirectory;
+    }
+
+    /**
+     * 获取最大工作线程数量。
+     *
+     * @return 返回最大工作线程数量。
+     */
+    public int getMaxWorkers() {
+        return this.executor.getMaximumPoolSize();
+    }
+
+    /**
+     * 停止接收新的上传任务。
+     */
+    public void close() {
+        this.closed.set(true);
+    }
+
+    /**
+     * 销毁上传器，未执行的任务将被丢弃。
+     */
+    public void destroy() {
+        this.closed.set(true);
+        this.executor.shutdownNow();
+        this.readerExecutor.shutdownNow();
+        this.digestExecutor.shutdown();
+    }
+
+    /**
+     * 等待正在进行的上传任务完成。
+     *
+     * @param deadline 指定截止时间戳。
+     * @return 返回截止时仍未完成上传的文件码列表。
+     */
+    public List<String> awaitUploads(long deadline) {
+        synchronized (this.uploadMetaMap) {
+            while (!this.uploadMetaMap.isEmpty()) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+
+                try {
+                    this.uploadMetaMap.wait(remaining);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                    break;
+                }
+            }
+        }
+
+        return new ArrayList<>(this.uploadMetaMap.keySet());
+    }
+
+    /**
+     * 获取排队中的任务数量。
+     *
+     * @return 返回排队中的任务数量。
+     */
+    public int numQueued() {
+        return this.executor.getQueue().size();
+    }
+
+    /**
+     * 获取正在上传的任务数量。
+     *
+     * @return 返回正在上传的任务数量。
+     */
+    public int numUploading() {
+        return this.executor.getActiveCount();
+    }
+
+    /**
+     * 获取未完成任务的文件总大小。
+     *
+     * @return 返回未完成任务的文件总大小。
+     */
+    public long getTotalSize() {
+        return this.totalSize.get();
+    }
+
+    /**
+     * 获取未完成任务已上传的数据大小。
+     *
+     * @return 返回未完成任务已上传的数据大小。
+     */
+    public long getProcessedSize() {
+        return this.processedSize.get();
+    }
+
+    /**
+     * 获取累计完成的任务数量。
+     *
+     * @return 返回累计完成的任务数量。
+     */
+    public long getCompletedCount() {
+        return this.completedCount.get();
+    }
+
+    /**
+     * 获取累计失败或被取消的任务数量。
+     *
+     * @return 返回累计失败或被取消的任务数量。
+     */
+    public long getFailedCount() {
+        return this.failedCount.get();
+    }
+
+    /**
+     * 以指定联系人的身份上传文件。
+     *
+     * @param contactId
+     * @param domain
+     * @param file
+     * @param listener
+     * @return 返回上传任务的信息描述。
+     */
+    public UploadMeta upload(Long contactId, String domain, File file, FileUploadListener listener) {
+        return this.upload(contactId, domain, file, PRIORITY_NORMAL, listener);
+    }
+
+    /**
+     * 以指定联系人的身份按指定优先级上传文件。
+     *
+     * @param contactId
+     * @param domain
+     * @param file
+     * @param priority 指定优先级，数值越大越先执行。
+     * @param listener
+     * @return 返回上传任务的信息描述。
+     */
+    public UploadMeta upload(Long contactId, String domain, File file, int priority, FileUploadListener listener) {
+        return this.upload(contactId, domain, file, priority, BandwidthShaper.CLASS_FILE, listener);
+    }
+
+    /**
+     * 以指定联系人的身份按指定优先级和流量类别上传文件。
+     *
+     * @param contactId
+     * @param domain
+     * @param file
+     * @param priority 指定优先级，数值越大越先执行。
+     * @param trafficClass 指定带宽整形的流量类别。
+     * @param listener
+     * @return 返回上传任务的信息描述。
+     */
+    public UploadMeta upload(Long contactId, String domain, File file, int priority, String trafficClass,
+                             FileUploadListener listener) {
+        String fileCode = FileUtils.makeFileCode(contactId, domain, file.getName());
+
+        UploadCheckpoint checkpoint = null;
+        File directory = this.checkpointDirectory;
+        if (null != directory && file.length() > CHUNK_SIZE) {
+            // 续传时沿用检查点的文件码
+            checkpoint = UploadCheckpoint.load(directory, file, fileCode);
+            fileCode = checkpoint.getFileCode();
+        }
+
+        UploadMeta uploadMeta = new UploadMeta(contactId, domain, file, fileCode, listener);
+        uploadMeta.checkpoint = checkpoint;
+        uploadMeta.trafficClass = trafficClass;
+
+        return this.submit(uploadMeta, priority);
+    }
+
+    /**
+     * 以指定联系人的身份上传输入流里的数据，无需先写入临时文件。输入流在上传结束后关闭。
+     *
+     * @param contactId
+     * @param domain
+     * @param fileName 指定文件名。
+     * @param length 指定数据长度，实际长度不一致时上传失败。
+     * @param input 指定输入流。
+     * @param listener
+     * @return 返回上传任务的信息描述。
+     */
+    public UploadMeta upload(Long contactId, String domain, String fileName, long length, InputStream input,
+                             FileUploadListener listener) {
+        return this.upload(contactId, domain, fileName, length, Channels.newChannel(input), listener);
+    }
+
+    /**
+     * 以指定联系人的身份上传通道里的数据，无需先写入临时文件。通道在上传结束后关闭。
+     *
+     * @param contactId
+     * @param domain
+     * @param fileName 指定文件名。
+     * @param length 指定数据长度，实际长度不一致时上传失败。
+     * @param channel 指定通道。
+     * @param listener
+     * @return 返回上传任务的信息描述。
+     */
+    public UploadMeta upload(Long contactId, String domain, String fileName, long length,
+                             ReadableByteChannel channel, FileUploadListener listener) {
+        String fileCode = FileUtils.makeFileCode(contactId, domain, fileName);
+        UploadMeta uploadMeta = new UploadMeta(contactId, domain, fileName, length, channel, fileCode, listener);
+        return this.submit(uploadMeta, PRIORITY_NORMAL);
+    }
+
+    /**
+     * 以指定联系人的身份上传缓冲区里的数据。上传缓冲区剩余的数据，不改变缓冲区的位置。
+     *
+     * @param contactId
+     * @param domain
+     * @param fileName 指定文件名。
+     * @param buffer 指定缓冲区。
+     * @param listener
+     * @return 返回上传任务的信息描述。
+     */
+    public UploadMeta upload(Long contactId, String domain, String fileName, ByteBuffer buffer,
+                             FileUploadListener listener) {
+        return this.upload(contactId, domain, fileName, buffer.remaining(), new BufferChannel(buffer.duplicate()),
+                listener);
+    }
+
+    private UploadMeta submit(UploadMeta uploadMeta, int priority) {
+        if (this.closed.get()) {
+            this.closeSource(uploadMeta);
+            uploadMeta.fireFailed(new IllegalStateException("File uploader is closed"));
+            return uploadMeta;
+        }
+
+        this.uploadMetaMap.put(uploadMeta.fileCode, uploadMeta);
+        this.totalSize.addAndGet(uploadMeta.fileSize);
+
+        uploadMeta.task = new UploadTask(uploadMeta, priority, this.sequence.getAndIncrement());
+        this.executor.execute(uploadMeta.task);
+
+        return uploadMeta;
+    }
+
+    /**
+     * 取消上传任务。排队中的任务被直接移除，正在上传的任务在当前数据块发送后中止。
+     *
+     * @param fileCode 指定文件码。
+     * @return 如果找到该任务返回 {@code true} 。
+     */
+    public boolean cancel(String fileCode) {
+        UploadMeta uploadMeta = this.uploadMetaMap.get(fileCode);
+        if (null == uploadMeta) {
+            return false;
+        }
+
+        uploadMeta.cancelled = true;
+
+        if (this.executor.remove(uploadMeta.task)) {
+            // 任务尚未执行
+            if (null != uploadMeta.checkpoint) {
+                uploadMeta.checkpoint.delete();
+            }
+            this.finish(uploadMeta, 0, false);
+            uploadMeta.fireFailed(new CancellationException("Upload cancelled : " + fileCode));
+        }
+
+        return true;
+    }
+
+    private void transmit(UploadMeta uploadMeta) {
+        if (null != uploadMeta.checkpoint) {
+            this.transmitChunked(uploadMeta);
+            return;
+        }
+
+        if (null != this.digestCache && null != uploadMeta.file) {
+            uploadMeta.knownDigest = this.digestCache.get(uploadMeta.file);
+            if (null != uploadMeta.knownDigest) {
+                uploadMeta.md5Code = uploadMeta.knownDigest.md5Code;
+                uploadMeta.sha1Code = uploadMeta.knownDigest.sha1Code;
+            }
+        }
+
+        if (this.stripes > 1 && null != uploadMeta.file && uploadMeta.fileSize >= this.stripeThreshold) {
+            this.transmitStriped(uploadMeta);
+            return;
+        }
+
+        PrimitiveOutputStream outputStream = connector.sendStream(uploadMeta.fileCode);
+
+        boolean success = false;
+
+        Deflater deflater = null;
+        if (this.compressionEnabled
+                && UploadCompression.isCompressible(uploadMeta.fileName, uploadMeta.fileSize)) {
+            deflater = new Deflater(Deflater.BEST_SPEED);
+            uploadMeta.compression = UploadCompression.DEFLATE;
+        }
+
+        try {
+            OutputStream target = outputStream;
+            if (null != deflater) {
+                target = new DeflaterOutputStream(outputStream, deflater, this.bufferSize);
+            }
+
+            if (uploadMeta.fileSize > this.bufferSize * 2L) {
+                this.sendPipelined(uploadMeta, target);
+            }
+            else {
+                this.sendSequential(uploadMeta, target);
+            }
+
+            if (null == uploadMeta.file && uploadMeta.processed != uploadMeta.fileSize) {
+                throw new IOException("Length mismatch : " + uploadMeta.processed + " != " + uploadMeta.fileSize);
+            }
+
+            if (null != deflater) {
+                ((DeflaterOutputStream) target).finish();
+            }
+
+            outputStream.flush();
+            success = true;
+        } catch (IOException | RuntimeException e) {
+            // 包括取消及摘要任务的 CompletionException
+            uploadMeta.fireFailed(e);
+        } finally {
+            if (null != deflater) {
+                deflater.end();
+            }
+
+            if (null != outputStream) {
+                try {
+                    outputStream.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+
+        try {
+            if (success) {
+                this.cacheDigest(uploadMeta);
+                uploadMeta.fireCompleted();
+            }
+        } finally {
+            this.finish(uploadMeta, uploadMeta.processed, success);
+        }
+    }
+
+    /**
+     * 分块上传文件，每个分块得到服务器确认后更新检查点。
+     */
+    private void transmitChunked(UploadMeta uploadMeta) {
+        UploadCheckpoint checkpoint = uploadMeta.checkpoint;
+        boolean success = false;
+
+        try (FileChannel channel = FileChannel.open(uploadMeta.file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            long offset = this.resumeDigests(uploadMeta, channel);
+            if (offset > 0) {
+                Logger.i(this.getClass(), "#transmitChunked - Resume " + uploadMeta.fileCode + " from " + offset);
+                this.fireBlockSent(uploadMeta, offset);
+            }
+
+            byte[] bytes = new byte[this.bufferSize];
+            while (offset < size) {
+                long length = Math.min(CHUNK_SIZE, size - offset);
+
+                this.sendChunkWithRetry(uploadMeta, channel, offset, length, bytes, true);
+
+                offset += length;
+                checkpoint.update(offset, digestToHex(uploadMeta.md5), digestToHex(uploadMeta.sha1));
+            }
+
+            success = true;
+        } catch (IOException | RuntimeException e) {
+            if (e instanceof CancellationException) {
+                checkpoint.delete();
+            }
+            uploadMeta.fireFailed(e);
+        }
+
+        try {
+            if (success) {
+                checkpoint.delete();
+                this.cacheDigest(uploadMeta);
+                uploadMeta.fireCompleted();
+            }
+        } finally {
+            this.finish(uploadMeta, uploadMeta.processed, success);
+        }
+    }
+
+    /**
+     * 分条上传文件。多个数据流并行领取分块发送，整个文件的摘要同时在读取线程上计算。
+     */
+    private void transmitStriped(UploadMeta uploadMeta) {
+        boolean success = false;
+
+        try (FileChannel channel = FileChannel.open(uploadMeta.file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            AtomicLong nextOffset = new AtomicLong(0);
+            AtomicReference<RuntimeException> failure = new AtomicReference<>();
+            AtomicReference<IOException> error = new AtomicReference<>();
+
+            CompletableFuture<Void> digesting = CompletableFuture.completedFuture(null);
+            if (null == uploadMeta.knownDigest) {
+                digesting = CompletableFuture.runAsync(() -> {
+                    try {
+                        this.digestFile(uploadMeta, channel, size, error);
+                    } catch (IOException e) {
+                        error.compareAndSet(null, e);
+                    }
+                }, this.readerExecutor);
+            }
+
+            List<CompletableFuture<Void>> stripeList = new ArrayList<>();
+            for (int i = 1; i < this.stripes; ++i) {
+                stripeList.add(CompletableFuture.runAsync(() -> {
+                    this.sendStripe(uploadMeta, channel, size, nextOffset, error, failure);
+                }, this.readerExecutor));
+            }
+
+            // 当前线程也负责一路数据流
+            this.sendStripe(uploadMeta, channel, size, nextOffset, error, failure);
+
+            CompletableFuture.allOf(stripeList.toArray(new CompletableFuture[0])).join();
+            digesting.join();
+
+            if (null != failure.get()) {
+                throw failure.get();
+            }
+            if (null != error.get()) {
+                throw error.get();
+            }
+
+            success = true;
+        } catch (IOException | RuntimeException e) {
+            uploadMeta.fireFailed(e);
+        }
+
+        try {
+            if (success) {
+                this.cacheDigest(uploadMeta);
+                uploadMeta.fireCompleted();
+            }
+        } finally {
+            this.finish(uploadMeta, uploadMeta.processed, success);
+        }
+    }
+
+    /**
+     * 循环领取分块并发送，直到所有分块已领取或者出现错误。
+     */
+    private void sendStripe(UploadMeta uploadMeta, FileChannel channel, long size, AtomicLong nextOffset,
+                            AtomicReference<IOException> error, AtomicReference<RuntimeException> failure) {
+        byte[] bytes = new byte[this.bufferSize];
+        while (null == error.get() && null == failure.get()) {
+            long offset = nextOffset.getAndAdd(CHUNK_SIZE);
+            if (offset >= size) {
+                break;
+            }
+
+            try {
+                this.sendChunkWithRetry(uploadMeta, channel, offset, Math.min(CHUNK_SIZE, size - offset), bytes,
+                        false);
+            } catch (IOException e) {
+                error.compareAndSet(null, e);
+            } catch (RuntimeException e) {
+                failure.compareAndSet(null, e);
+            }
+        }
+    }
 
     /**
-     * 流名称对应的上传器。
+     * 按顺序读取整个文件计算摘要。
      */
-    private Map<String, UploadMeta> uploadMetaMap;
+    private void digestFile(UploadMeta uploadMeta, FileChannel channel, long size,
+                            AtomicReference<IOException> error) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(this.bufferSize * 8);
+        long position = 0;
+        while (position < size && null == error.get() && !uploadMeta.cancelled) {
+            buffer.clear();
+            int length = channel.read(buffer, position);
+            if (length <= 0) {
+                throw new IOException("Unexpected end of file : " + uploadMeta.fileName);
+            }
 
-    public FileUploader(Connector connector) {
-        this.connector = connector;
-        this.uploadMetaMap = new ConcurrentHashMap<>();
+            uploadMeta.md5.update(buffer.array(), 0, length);
+            uploadMeta.sha1.update(buffer.array(), 0, length);
+            position += length;
+        }
     }
 
     /**
-     * 以指定联系人的身份上传文件。
+     * 发送分块，失败时重试。
      *
-     * @param contactId
-     * @param domain
-     * @param file
-     * @param listener
+     * @param digesting 是否同时计算整个文件的摘要，失败时回滚摘要状态。
      */
-    public void upload(Long contactId, String domain, File file, FileUploadListener listener) {
-        String fileCode = FileUtils.makeFileCode(contactId, domain, file.getName());
-        UploadMeta uploadMeta = new UploadMeta(contactId, domain, file, fileCode, listener);
+    private void sendChunkWithRetry(UploadMeta uploadMeta, FileChannel channel, long offset, long length,
+                                    byte[] bytes, boolean digesting) throws IOException {
+        int retries = 0;
+        while (true) {
+            MessageDigest md5 = null;
+            MessageDigest sha1 = null;
+            if (digesting) {
+                try {
+                    md5 = (MessageDigest) uploadMeta.md5.clone();
+                    sha1 = (MessageDigest) uploadMeta.sha1.clone();
+                } catch (CloneNotSupportedException e) {
+                    throw new IOException(e);
+                }
+            }
+
+            try {
+                this.sendChunk(uploadMeta, channel, offset, length, bytes, digesting);
+                return;
+            } catch (IOException e) {
+                if (digesting) {
+                    // 回滚摘要状态，重新发送该分块
+                    uploadMeta.md5 = md5;
+                    uploadMeta.sha1 = sha1;
+                }
+
+                if (++retries > MAX_CHUNK_RETRIES) {
+                    throw e;
+                }
+
+                Logger.w(this.getClass(), "#sendChunkWithRetry - Retry chunk " + uploadMeta.fileCode
+                        + " at " + offset + " (" + retries + ") : " + e.getMessage());
+                try {
+                    Thread.sleep(1000L * retries);
+                } catch (InterruptedException ie) {
+                    throw new InterruptedIOException("Upload interrupted : " + uploadMeta.fileCode);
+                }
+            }
+        }
+    }
+
+    /**
+     * 重新计算检查点已确认部分的摘要，恢复摘要状态。
+     *
+     * @return 返回续传的偏移量，已确认部分与检查点不一致时返回 {@code 0} 。
+     */
+    private long resumeDigests(UploadMeta uploadMeta, FileChannel channel) throws IOException {
+        UploadCheckpoint checkpoint = uploadMeta.checkpoint;
+        long offset = checkpoint.getOffset();
+        if (offset <= 0) {
+            return 0;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(this.bufferSize);
+        long position = 0;
+        while (position < offset) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), offset - position));
+            int length = channel.read(buffer, position);
+            if (length <= 0) {
+                break;
+            }
+
+            buffer.flip();
+            uploadMeta.md5.update(buffer.array(), 0, length);
+            uploadMeta.sha1.update(buffer.array(), 0, length);
+            position += length;
+        }
+
+        if (position == offset && digestToHex(uploadMeta.md5).equals(checkpoint.getMD5Code())
+                && digestToHex(uploadMeta.sha1).equals(checkpoint.getSHA1Code())) {
+            return offset;
+        }
 
-        this.uploadMetaMap.put(fileCode, uploadMeta);
+        Logger.w(this.getClass(), "#resumeDigests - Checkpoint mismatch, restart : " + uploadMeta.fileCode);
+        uploadMeta.md5.reset();
+        uploadMeta.sha1.reset();
+        checkpoint.reset();
+        return 0;
+    }
 
-        (new Thread(() -> {
-            PrimitiveOutputStream outputStream = connector.sendStream(fileCode);
-            FileInputStream fis = null;
+    /**
+     * 发送一个分块并等待服务器确认，失败时回滚该分块的进度。
+     */
+    private void sendChunk(UploadMeta uploadMeta, FileChannel channel, long offset, long length, byte[] bytes,
+                           boolean digesting) throws IOException {
+        MessageDigest chunkMD5 = null;
+        try {
+            chunkMD5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
 
-            long totalSize = 0;
+        long sent = 0;
+        try {
+            PrimitiveOutputStream outputStream = this.connector.sendStream(uploadMeta.fileCode + "_" + offset);
+            if (null == outputStream) {
+                throw new IOException("Can not open stream : " + uploadMeta.fileCode);
+            }
 
             try {
-                fis = new FileInputStream(file);
-                byte[] bytes = new byte[bufferSize];
-                int length = 0;
-                while ((length = fis.read(bytes)) > 0) {
-                    outputStream.write(bytes, 0, length);
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                long end = offset + length;
+                while (offset + sent < end) {
+                    this.checkCancelled(uploadMeta);
 
-                    uploadMeta.md5.update(bytes, 0, length);
-                    uploadMeta.sha1.update(bytes, 0, length);
+                    buffer.clear();
+                    buffer.limit((int) Math.min(bytes.length, end - offset - sent));
+                    int read = channel.read(buffer, offset + sent);
+                    if (read <= 0) {
+                        throw new IOException("Unexpected end of file : " + uploadMeta.fileName);
+                    }
+
+                    this.throttle(uploadMeta, read);
+                    outputStream.write(bytes, 0, read);
 
-                    totalSize += length;
-                    uploadMeta.fireUploading(totalSize);
+                    chunkMD5.update(bytes, 0, read);
+                    if (digesting) {
+                        uploadMeta.md5.update(bytes, 0, read);
+                        uploadMeta.sha1.update(bytes, 0, read);
+                    }
+
+                    sent += read;
+                    this.fireBlockSent(uploadMeta, read);
                 }
 
                 outputStream.flush();
+            } finally {
+                outputStream.close();
+            }
+
+            ActionDialect actionDialect = new ActionDialect(ACTION_PUT_FILE_CHUNK);
+            actionDialect.addParam("domain", uploadMeta.domain);
+            actionDialect.addParam("fileCode", uploadMeta.fileCode);
+            actionDialect.addParam("offset", offset);
+            actionDialect.addParam("length", length);
+            actionDialect.addParam("md5", FileUtils.bytesToHexString(chunkMD5.digest()));
+
+            // 阻塞线程，并等待服务器确认
+            ActionDialect result = this.connector.send(this.receiver.inject(), actionDialect);
+            if (null == result) {
+                throw new IOException("Chunk acknowledgement timeout : " + uploadMeta.fileCode + " at " + offset);
+            }
+
+            int code = result.getParamAsInt("code");
+            if (code != FileStorageStateCode.Ok.code) {
+                throw new IOException("Chunk rejected : " + uploadMeta.fileCode + " at " + offset + " - " + code);
+            }
+        } catch (IOException e) {
+            this.rollbackSent(uploadMeta, sent);
+            throw e;
+        }
+    }
+
+    private static String digestToHex(MessageDigest digest) {
+        try {
+            return FileUtils.bytesToHexString(((MessageDigest) digest.clone()).digest());
+        } catch (CloneNotSupportedException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 在当前线程依次读取、发送和计算摘要，用于小文件。
+     */
+    private void sendSequential(UploadMeta uploadMeta, OutputStream outputStream) throws IOException {
+        try (InputStream fis = this.openSource(uploadMeta)) {
+            byte[] bytes = new byte[this.bufferSize];
+            int length = 0;
+            while ((length = fis.read(bytes)) > 0) {
+                this.checkCancelled(uploadMeta);
+
+                this.throttle(uploadMeta, length);
+                outputStream.write(bytes, 0, length);
+
+                if (null == uploadMeta.knownDigest) {
+                    uploadMeta.md5.update(bytes, 0, length);
+                    uploadMeta.sha1.update(bytes, 0, length);
+                }
+
+                this.fireBlockSent(uploadMeta, length);
+            }
+        }
+    }
+
+    /**
+     * 以流水线方式发送文件。
+     * 读取线程预读数据块，MD5 和 SHA1 摘要分别在摘要线程池上按顺序计算，当前线程只负责发送。
+     * 缓冲池大小限制了每个任务的内存占用。大文件使用内存映射读取。
+     */
+    private void sendPipelined(UploadMeta uploadMeta, OutputStream outputStream) throws IOException {
+        BlockingQueue<byte[]> freeBuffers = new ArrayBlockingQueue<>(PIPELINE_DEPTH);
+        for (int i = 0; i < PIPELINE_DEPTH; ++i) {
+            freeBuffers.add(new byte[this.bufferSize]);
+        }
+
+        // 数据块数量受缓冲池限制，因此结束标记总能放入队列
+        BlockingQueue<Block> sendQueue = new ArrayBlockingQueue<>(PIPELINE_DEPTH + 1);
+        AtomicBoolean aborted = new AtomicBoolean(false);
+        AtomicReference<IOException> readError = new AtomicReference<>();
+        List<CompletableFuture<Void>> digestChains = new ArrayList<>(2);
+
+        this.readerExecutor.execute(() -> {
+            try {
+                if (null != uploadMeta.file && uploadMeta.fileSize >= MAPPED_THRESHOLD) {
+                    this.readMapped(uploadMeta, freeBuffers, sendQueue, aborted, digestChains);
+                }
+                else {
+                    this.readStream(uploadMeta, freeBuffers, sendQueue, aborted, digestChains);
+                }
             } catch (IOException e) {
-                uploadMeta.fireFailed(e);
+                readError.set(e);
+            } catch (InterruptedException e) {
+                readError.set(new InterruptedIOException("Read interrupted : " + uploadMeta.fileCode));
             } finally {
-                if (null != fis) {
-                    try {
-                        fis.close();
-                    } catch (IOException e) {
-                    }
+                sendQueue.offer(Block.END);
+            }
+        });
+
+        boolean ended = false;
+        try {
+            while (true) {
+                Block block = sendQueue.take();
+                if (block == Block.END) {
+                    ended = true;
+                    break;
                 }
 
-                if (null != outputStream) {
-                    try {
-                        outputStream.close();
-                    } catch (IOException e) {
-                    }
+                try {
+                    this.checkCancelled(uploadMeta);
+                    this.throttle(uploadMeta, block.length);
+                    outputStream.write(block.bytes, 0, block.length);
+                } finally {
+                    block.release();
+                }
+
+                this.fireBlockSent(uploadMeta, block.length);
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Send interrupted : " + uploadMeta.fileCode);
+        } finally {
+            if (!ended) {
+                // 通知读取线程停止，并释放已读取的数据块
+                aborted.set(true);
+                this.drain(sendQueue);
+            }
+        }
+
+        if (null != readError.get()) {
+            throw readError.get();
+        }
+
+        // 等待摘要计算完成
+        CompletableFuture.allOf(digestChains.toArray(new CompletableFuture[0])).join();
+    }
+
+    /**
+     * 使用输入流读取数据块，摘要计算使用数据块的缓冲区。
+     */
+    private void readStream(UploadMeta uploadMeta, BlockingQueue<byte[]> freeBuffers, BlockingQueue<Block> sendQueue,
+                            AtomicBoolean aborted, List<CompletableFuture<Void>> digestChains)
+            throws IOException, InterruptedException {
+        CompletableFuture<Void> md5Chain = CompletableFuture.completedFuture(null);
+        CompletableFuture<Void> sha1Chain = CompletableFuture.completedFuture(null);
+
+        try (InputStream fis = this.openSource(uploadMeta)) {
+            while (!aborted.get()) {
+                byte[] bytes = freeBuffers.take();
+                int length = fis.read(bytes);
+                if (length <= 0) {
+                    break;
+                }
+
+                if (null != uploadMeta.knownDigest) {
+                    sendQueue.put(new Block(bytes, length, freeBuffers, 1));
+                    continue;
+                }
+
+                // 发送和两个摘要都完成后归还缓冲区
+                Block block = new Block(bytes, length, freeBuffers, 3);
+                md5Chain = md5Chain.thenRunAsync(() -> {
+                    uploadMeta.md5.update(bytes, 0, length);
+                    block.release();
+                }, this.digestExecutor);
+                sha1Chain = sha1Chain.thenRunAsync(() -> {
+                    uploadMeta.sha1.update(bytes, 0, length);
+                    block.release();
+                }, this.digestExecutor);
+
+                sendQueue.put(block);
+            }
+        } finally {
+            digestChains.add(md5Chain);
+            digestChains.add(sha1Chain);
+        }
+    }
+
+    /**
+     * 使用内存映射读取大文件。
+     * 摘要直接从映射区域计算，不占用发送缓冲区；由于输出流只接受字节数组，发送数据需复制一次到缓冲区。
+     */
+    private void readMapped(UploadMeta uploadMeta, BlockingQueue<byte[]> freeBuffers, BlockingQueue<Block> sendQueue,
+                            AtomicBoolean aborted, List<CompletableFuture<Void>> digestChains)
+            throws IOException, InterruptedException {
+        CompletableFuture<Void> md5Chain = CompletableFuture.completedFuture(null);
+        CompletableFuture<Void> sha1Chain = CompletableFuture.completedFuture(null);
+
+        try (FileChannel channel = FileChannel.open(uploadMeta.file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            long position = 0;
+            MappedByteBuffer window = null;
+
+            while (!aborted.get() && position < size) {
+                if (null == window || !window.hasRemaining()) {
+                    window = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                            Math.min(MAPPED_WINDOW_SIZE, size - position));
+                }
+
+                byte[] bytes = freeBuffers.take();
+                int length = Math.min(bytes.length, window.remaining());
+
+                ByteBuffer md5View = window.slice();
+                md5View.limit(length);
+                ByteBuffer sha1View = md5View.duplicate();
+
+                window.get(bytes, 0, length);
+
+                // 缓冲区只用于发送
+                Block block = new Block(bytes, length, freeBuffers, 1);
+                if (null == uploadMeta.knownDigest) {
+                    md5Chain = md5Chain.thenRunAsync(() -> {
+                        uploadMeta.md5.update(md5View);
+                    }, this.digestExecutor);
+                    sha1Chain = sha1Chain.thenRunAsync(() -> {
+                        uploadMeta.sha1.update(sha1View);
+                    }, this.digestExecutor);
                 }
+
+                sendQueue.put(block);
+                position += length;
             }
+        } finally {
+            digestChains.add(md5Chain);
+            digestChains.add(sha1Chain);
+        }
+    }
 
+    private void drain(BlockingQueue<Block> sendQueue) {
+        while (true) {
+            Block block = null;
             try {
-                Thread.sleep(10L);
+                block = sendQueue.take();
             } catch (InterruptedException e) {
-                e.printStackTrace();
+                return;
+            }
+
+            if (block == Block.END) {
+                return;
+            }
+
+            block.release();
+        }
+    }
+
+    private InputStream openSource(UploadMeta uploadMeta) throws IOException {
+        if (null != uploadMeta.file) {
+            return new FileInputStream(uploadMeta.file);
+        }
+
+        return Channels.newInputStream(uploadMeta.channel);
+    }
+
+    private void closeSource(UploadMeta uploadMeta) {
+        if (null != uploadMeta.channel) {
+            try {
+                uploadMeta.channel.close();
+            } catch (IOException e) {
+                // Nothing
+            }
+        }
+    }
+
+    private void cacheDigest(UploadMeta uploadMeta) {
+        if (null != this.digestCache && null != uploadMeta.file && null == uploadMeta.knownDigest) {
+            this.digestCache.put(uploadMeta.file, new FileDigest(uploadMeta.getMD5Code(), uploadMeta.getSHA1Code()));
+        }
+    }
+
+    private void throttle(UploadMeta uploadMeta, int length) throws InterruptedIOException {
+        if (null == this.bandwidthShaper) {
+            return;
+        }
+
+        try {
+            this.bandwidthShaper.acquire(uploadMeta.trafficClass, length);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Upload interrupted : " + uploadMeta.fileCode);
+        }
+    }
+
+    private void checkCancelled(UploadMeta uploadMeta) {
+        if (uploadMeta.cancelled) {
+            throw new CancellationException("Upload cancelled : " + uploadMeta.fileCode);
+        }
+    }
+
+    private void fireBlockSent(UploadMeta uploadMeta, long length) {
+        long processed = 0;
+        synchronized (uploadMeta) {
+            // 分条传输时多个线程同时更新进度
+            uploadMeta.processed += length;
+            processed = uploadMeta.processed;
+        }
+        this.processedSize.addAndGet(length);
+        uploadMeta.fireUploading(processed);
+    }
+
+    private void rollbackSent(UploadMeta uploadMeta, long length) {
+        synchronized (uploadMeta) {
+            uploadMeta.processed -= length;
+        }
+        this.processedSize.addAndGet(-length);
+    }
+
+    private void finish(UploadMeta uploadMeta, long processed, boolean success) {
+        if (!uploadMeta.finished.compareAndSet(false, true)) {
+            return;
+        }
+
+        this.closeSource(uploadMeta);
+
+        this.totalSize.addAndGet(-uploadMeta.fileSize);
+        this.processedSize.addAndGet(-processed);
+
+        if (success) {
+            this.completedCount.incrementAndGet();
+        }
+        else {
+            this.failedCount.incrementAndGet();
+        }
+
+        synchronized (this.uploadMetaMap) {
+            // 同一文件码可能已提交了新的任务，只移除自己
+            this.uploadMetaMap.remove(uploadMeta.fileCode, uploadMeta);
+            this.uploadMetaMap.notifyAll();
+        }
+    }
+
+    /**
+     * 读取缓冲区剩余数据的通道。
+     */
+    private static class BufferChannel implements ReadableByteChannel {
+
+        private final ByteBuffer buffer;
+
+        private boolean open = true;
+
+        protected BufferChannel(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (!this.open) {
+                throw new ClosedChannelException();
             }
 
-            uploadMetaMap.remove(fileCode);
-            uploadMeta.fireCompleted();
-        })).start();
+            if (!this.buffer.hasRemaining()) {
+                return -1;
+            }
+
+            int length = Math.min(dst.remaining(), this.buffer.remaining());
+            ByteBuffer slice = this.buffer.slice();
+            slice.limit(length);
+            dst.put(slice);
+            this.buffer.position(this.buffer.position() + length);
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return this.open;
+        }
+
+        @Override
+        public void close() {
+            this.open = false;
+        }
+    }
+
+    /**
+     * 流水线数据块。所有引用都释放后缓冲区归还缓冲池。
+     */
+    private static class Block {
+
+        protected final static Block END = new Block(null, 0, null, 1);
+
+        protected final byte[] bytes;
+
+        protected final int length;
+
+        private final BlockingQueue<byte[]> pool;
+
+        private final AtomicInteger references;
+
+        protected Block(byte[] bytes, int length, BlockingQueue<byte[]> pool, int references) {
+            this.bytes = bytes;
+            this.length = length;
+            this.pool = pool;
+            this.references = new AtomicInteger(references);
+        }
+
+        protected void release() {
+            if (this.references.decrementAndGet() == 0) {
+                this.pool.offer(this.bytes);
+            }
+        }
     }
 
+    /**
+     * 上传任务。
+     */
+    private class UploadTask implements Runnable, Comparable<UploadTask> {
+
+        private final UploadMeta uploadMeta;
+
+        private final int priority;
+
+        private final long sequence;
+
+        protected UploadTask(UploadMeta uploadMeta, int priority, long sequence) {
+            this.uploadMeta = uploadMeta;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            try {
+                transmit(this.uploadMeta);
+            } catch (RuntimeException e) {
+                // 发送前的准备阶段出错时同样结束任务
+                Logger.w(FileUploader.class, "#run - " + this.uploadMeta.fileCode, e);
+                if (!this.uploadMeta.finished.get()) {
+                    this.uploadMeta.fireFailed(e);
+                    finish(this.uploadMeta, this.uploadMeta.processed, false);
+                }
+            }
+        }
+
+        @Override
+        public int compareTo(UploadTask other) {
+            if (this.priority != other.priority) {
+                return Integer.compare(other.priority, this.priority);
+            }
+
+            return Long.compare(this.sequence, other.sequence);
+        }
+    }
 
     /**
      * 信息描述。
@@ -132,10 +1418,24 @@ public class FileUploader {
 
         public final String domain;
 
+        /**
+         * 上传的文件，从输入流或缓冲区上传时为 {@code null} 。
+         */
         public final File file;
 
+        public final String fileName;
+
+        public final long fileSize;
+
+        public final long lastModified;
+
         public final String fileCode;
 
+        /**
+         * 从输入流或缓冲区上传时的数据源。
+         */
+        protected final ReadableByteChannel channel;
+
         protected MessageDigest md5;
 
         private String md5Code;
@@ -146,10 +1446,55 @@ public class FileUploader {
 
         protected final FileUploadListener listener;
 
+        protected UploadTask task;
+
+        protected UploadCheckpoint checkpoint;
+
+        /**
+         * 由摘要缓存得到的文件摘要。
+         */
+        protected FileDigest knownDigest;
+
+        /**
+         * 带宽整形的流量类别。
+         */
+        protected String trafficClass = BandwidthShaper.CLASS_FILE;
+
+        /**
+         * 数据流的压缩算法，未压缩时为 {@code null} 。
+         */
+        protected String compression;
+
+        protected volatile boolean cancelled = false;
+
+        /**
+         * 任务是否已结束并移出统计。
+         */
+        protected final AtomicBoolean finished = new AtomicBoolean(false);
+
+        protected long processed = 0;
+
         UploadMeta(Long contactId, String domain, File file, String fileCode, FileUploadListener listener) {
+            this(contactId, domain, file, file.getName(), file.length(), file.lastModified(), null,
+                    fileCode, listener);
+        }
+
+        UploadMeta(Long contactId, String domain, String fileName, long fileSize, ReadableByteChannel channel,
+                   String fileCode, FileUploadListener listener) {
+            this(contactId, domain, null, fileName, fileSize, System.currentTimeMillis(), channel,
+                    fileCode, listener);
+        }
+
+        private UploadMeta(Long contactId, String domain, File file, String fileName, long fileSize,
+                           long lastModified, ReadableByteChannel channel, String fileCode,
+                           FileUploadListener listener) {
             this.contactId = contactId;
             this.domain = domain;
             this.file = file;
+            this.fileName = fileName;
+            this.fileSize = fileSize;
+            this.lastModified = lastModified;
+            this.channel = channel;
             this.fileCode = fileCode;
             try {
                 this.md5 = MessageDigest.getInstance("MD5");
@@ -160,6 +1505,24 @@ public class FileUploader {
             this.listener = listener;
         }
 
+        /**
+         * 获取数据流的压缩算法。
+         *
+         * @return 返回压缩算法名，未压缩时返回 {@code null} 。
+         */
+        public String getCompression() {
+            return this.compression;
+        }
+
+        /**
+         * 上传任务是否已被取消。
+         *
+         * @return 如果已被取消返回 {@code true} 。
+         */
+        public boolean isCancelled() {
+            return this.cancelled;
+        }
+
         public String getMD5Code() {
             if (null == this.md5Code) {
                 byte[] hashMD5 = this.md5.digest();
@@ -177,15 +1540,27 @@ public class FileUploader {
         }
 
         protected void fireUploading(long processedSize) {
-            this.listener.onUploading(this, processedSize);
+            try {
+                this.listener.onUploading(this, processedSize);
+            } catch (RuntimeException e) {
+                Logger.w(FileUploader.class, "#fireUploading - Listener error : " + this.fileCode, e);
+            }
         }
 
         protected void fireCompleted() {
-            this.listener.onCompleted(this);
+            try {
+                this.listener.onCompleted(this);
+            } catch (RuntimeException e) {
+                Logger.w(FileUploader.class, "#fireCompleted - Listener error : " + this.fileCode, e);
+            }
         }
 
         protected void fireFailed(Throwable throwable) {
-            this.listener.onFailed(this, throwable);
+            try {
+                this.listener.onFailed(this, throwable);
+            } catch (RuntimeException e) {
+                Logger.w(FileUploader.class, "#fireFailed - Listener error : " + this.fileCode, e);
+            }
         }
     }
 }
@@ -0,0 +1,456 @@
+/*
+ * This source file is part of Cube.
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2023 Cube Team.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cube.client.file;
+
+import cell.util.log.Logger;
+import cube.client.util.PooledHttpClient;
+import cube.util.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * HLS 分片缓存。
+ * 解析 M3U8 播放列表并行预取前若干个分片，分片按不含查询参数的地址缓存在本地目录，
+ * 边缘代理可以直接从缓存读取分片。缓存总大小超出限制时淘汰最久未访问的分片。
+ */
+public class HLSSegmentCache {
+
+    /**
+     * 分片缓存的目录名。
+     */
+    public final static String DIRECTORY = "hls";
+
+    /**
+     * 默认缓存的最大总大小。
+     */
+    public final static long DEFAULT_MAX_SIZE = 512L * 1024 * 1024;
+
+    private final File directory;
+
+    private final long maxSize;
+
+    private final PooledHttpClient httpClient;
+
+    /**
+     * 已缓存的分片及大小，按访问顺序排列。
+     */
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long totalSize = 0;
+
+    /**
+     * 正在下载的分片。
+     */
+    private final ConcurrentMap<String, CompletableFuture<File>> loadingMap = new ConcurrentHashMap<>();
+
+    private final AtomicLong hitCount = new AtomicLong(0);
+
+    private final AtomicLong missCount = new AtomicLong(0);
+
+    /**
+     * 构造函数。
+     *
+     * @param directory 指定缓存目录。
+     * @param maxSize 指定缓存的最大总大小。
+     * @param httpClient 指定 HTTP 客户端。
+     */
+    public HLSSegmentCache(File directory, long maxSize, PooledHttpClient httpClient) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.httpClient = httpClient;
+        this.rebuild();
+    }
+
+    /**
+     * 获取播放列表，并在后台并行预取前若干个分片。
+     *
+     * @param playlistURL 播放列表地址。
+     * @param prefetchCount 预取的分片数量。
+     * @return 返回解析后的播放列表。
+     * @throws IOException
+     */
+    public Playlist prepare(String playlistURL, int prefetchCount) throws IOException {
+        return this.prepare(playlistURL, prefetchCount, 0);
+    }
+
+    /**
+     * 获取播放列表，并在后台并行预取前若干个分片。服务器首次生成播放列表时需要较长时间。
+     *
+     * @param playlistURL 播放列表地址。
+     * @param prefetchCount 预取的分片数量。
+     * @param readTimeout 获取播放列表的读取超时，单位：毫秒，为 {@code 0} 时不限制。
+     * @return 返回解析后的播放列表。
+     * @throws IOException
+     */
+    public Playlist prepare(String playlistURL, int prefetchCount, int readTimeout) throws IOException {
+        PooledHttpClient.Response response = this.httpClient.get(playlistURL, readTimeout);
+        if (!response.isSuccessful()) {
+            throw new IOException("Request playlist failed : " + response.code);
+        }
+
+        Playlist playlist = Playlist.parse(playlistURL, response.getBodyAsString());
+
+        int count = Math.min(prefetchCount, playlist.segmentURLs.size());
+        for (int i = 0; i < count; ++i) {
+            String segmentURL = playlist.segmentURLs.get(i);
+            if (!this.isCached(segmentURL)) {
+                this.load(segmentURL);
+            }
+        }
+
+        return playlist;
+    }
+
+    /**
+     * 指定分片是否已缓存。
+     *
+     * @param segmentURL 分片地址。
+     * @return 如果已缓存返回 {@code true} 。
+     */
+    public boolean isCached(String segmentURL) {
+        String key = makeKey(segmentURL);
+        synchronized (this.entries) {
+            return this.entries.containsKey(key);
+        }
+    }
+
+    /**
+     * 获取分片的本地文件。分片未缓存时下载并缓存，正在预取时等待预取完成。
+     * 返回的文件可能随后被淘汰，读取分片数据时使用 {@link #writeSegment(String, OutputStream)} 。
+     *
+     * @param segmentURL 分片地址。
+     * @return 返回分片的本地文件。
+     * @throws IOException
+     */
+    public File getSegment(String segmentURL) throws IOException {
+        String key = makeKey(segmentURL);
+        synchronized (this.entries) {
+            if (null != this.entries.get(key)) {
+                File file = new File(this.directory, key);
+                if (file.exists()) {
+                    this.hitCount.incrementAndGet();
+                    return file;
+                }
+
+                this.totalSize -= this.entries.remove(key);
+            }
+        }
+
+        this.missCount.incrementAndGet();
+
+        try {
+            return this.load(segmentURL).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * 将分片数据写入指定输出流，例如边缘代理的应答流。
+     * 分片文件在索引锁内打开，写入期间被淘汰时仍从已打开的文件读取。
+     *
+     * @param segmentURL 分片地址。
+     * @param output 指定输出流。
+     * @return 返回写入的数据长度。
+     * @throws IOException
+     */
+    public long writeSegment(String segmentURL, OutputStream output) throws IOException {
+        try (InputStream input = Channels.newInputStream(this.openSegment(segmentURL))) {
+            long total = 0;
+            byte[] bytes = new byte[8192];
+            int length = 0;
+            while ((length = input.read(bytes)) > 0) {
+                output.write(bytes, 0, length);
+                total += length;
+            }
+            return total;
+        }
+    }
+
+    private FileChannel openSegment(String segmentURL) throws IOException {
+        String key = makeKey(segmentURL);
+        // 分片在下载完成和打开之间被淘汰时重新下载一次
+        for (int i = 0; i < 2; ++i) {
+            File file = this.getSegment(segmentURL);
+            synchronized (this.entries) {
+                if (null != this.entries.get(key)) {
+                    try {
+                        return FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                    } catch (NoSuchFileException e) {
+                        this.totalSize -= this.entries.remove(key);
+                    }
+                }
+            }
+        }
+
+        throw new IOException("Segment evicted before read : " + segmentURL);
+    }
+
+    public long getHitCount() {
+        return this.hitCount.get();
+    }
+
+    public long getMissCount() {
+        return this.missCount.get();
+    }
+
+    /**
+     * 获取已缓存分片的总大小。
+     *
+     * @return 返回总大小。
+     */
+    public long getTotalSize() {
+        synchronized (this.entries) {
+            return this.totalSize;
+        }
+    }
+
+    private CompletableFuture<File> load(String segmentURL) {
+        String key = makeKey(segmentURL);
+        CompletableFuture<File> future = new CompletableFuture<>();
+        CompletableFuture<File> current = this.loadingMap.putIfAbsent(key, future);
+        if (null != current) {
+            return current;
+        }
+
+        try {
+            this.httpClient.submit(() -> {
+                try {
+                    future.complete(this.fetch(segmentURL, key));
+                } catch (IOException | RuntimeException e) {
+                    Logger.w(this.getClass(), "#load - " + segmentURL + " : " + e.getMessage());
+                    future.completeExceptionally(e);
+                } finally {
+                    this.loadingMap.remove(key, future);
+                }
+                return null;
+            });
+        } catch (RejectedExecutionException e) {
+            // HTTP 客户端已关闭，结束任务以免等待者永远阻塞
+            Logger.w(this.getClass(), "#load - Rejected : " + segmentURL);
+            this.loadingMap.remove(key, future);
+            future.completeExceptionally(new IOException("HTTP client is closed", e));
+        }
+
+        return future;
+    }
+
+    private File fetch(String segmentURL, String key) throws IOException {
+        if (!this.directory.exists()) {
+            this.directory.mkdirs();
+        }
+
+        // 应答数据直接写入临时文件，避免读取到不完整的分片
+        File file = new File(this.directory, key);
+        File tmp = new File(this.directory, key + ".tmp");
+        int code = 0;
+        try {
+            code = this.httpClient.download(segmentURL, tmp);
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+
+        if (code != HttpURLConnection.HTTP_OK) {
+            throw new IOException("Request segment failed : " + code);
+        }
+
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        this.record(key, file.length());
+        return file;
+    }
+
+    private void record(String key, long size) {
+        List<String> evicted = new ArrayList<>();
+
+        synchronized (this.entries) {
+            Long previous = this.entries.put(key, size);
+            this.totalSize += size - ((null != previous) ? previous : 0);
+
+            Iterator<Map.Entry<String, Long>> iter = this.entries.entrySet().iterator();
+            while (this.totalSize > this.maxSize && iter.hasNext()) {
+                Map.Entry<String, Long> entry = iter.next();
+                if (entry.getKey().equals(key)) {
+                    continue;
+                }
+
+                this.totalSize -= entry.getValue();
+                evicted.add(entry.getKey());
+                iter.remove();
+            }
+        }
+
+        for (String name : evicted) {
+            new File(this.directory, name).delete();
+        }
+    }
+
+    /**
+     * 扫描缓存目录重建索引，按文件修改时间确定初始访问顺序。
+     */
+    private void rebuild() {
+        File[] files = this.directory.listFiles();
+        if (null == files) {
+            return;
+        }
+
+        List<File> list = new ArrayList<>(Arrays.asList(files));
+        Collections.sort(list, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (File file : list) {
+            if (file.getName().endsWith(".tmp")) {
+                file.delete();
+            }
+            else if (file.isFile()) {
+                this.record(file.getName(), file.length());
+            }
+        }
+    }
+
+    /**
+     * 生成分片的缓存键。查询参数里的令牌会变化，因此不参与计算。
+     */
+    private static String makeKey(String segmentURL) {
+        int index = segmentURL.indexOf('?');
+        String path = (index >= 0) ? segmentURL.substring(0, index) : segmentURL;
+        try {
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            return FileUtils.bytesToHexString(md5.digest(path.getBytes(StandardCharsets.UTF_8))).toLowerCase();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(path.hashCode());
+        }
+    }
+
+    /**
+     * M3U8 播放列表。
+     */
+    public static class Playlist {
+
+        /**
+         * 播放列表地址。
+         */
+        public final String url;
+
+        /**
+         * 播放列表内容。
+         */
+        public final String content;
+
+        /**
+         * 按播放顺序排列的分片地址。
+         */
+        public final List<String> segmentURLs;
+
+        /**
+         * 主播放列表里的子播放列表地址。
+         */
+        public final List<String> variantURLs;
+
+        protected Playlist(String url, String content, List<String> segmentURLs, List<String> variantURLs) {
+            this.url = url;
+            this.content = content;
+            this.segmentURLs = segmentURLs;
+            this.variantURLs = variantURLs;
+        }
+
+        /**
+         * 解析播放列表。相对地址按播放列表地址解析，并沿用播放列表地址的查询参数。
+         *
+         * @param url 播放列表地址。
+         * @param content 播放列表内容。
+         * @return 返回播放列表。
+         */
+        public static Playlist parse(String url, String content) {
+            int index = url.indexOf('?');
+            String query = (index >= 0) ? url.substring(index) : "";
+            URI base = URI.create((index >= 0) ? url.substring(0, index) : url);
+
+            List<String> segments = new ArrayList<>();
+            List<String> variants = new ArrayList<>();
+            boolean variant = false;
+
+            for (String line : content.split("\n")) {
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+
+                if (line.startsWith("#")) {
+                    if (line.startsWith("#EXT-X-STREAM-INF")) {
+                        variant = true;
+                    }
+                    continue;
+                }
+
+                String target = base.resolve(line).toString();
+                if (line.indexOf('?') < 0) {
+                    target += query;
+                }
+
+                if (variant) {
+                    variants.add(target);
+                    variant = false;
+                }
+                else {
+                    segments.add(target);
+                }
+            }
+
+            return new Playlist(url, content, segments, variants);
+        }
+    }
+}
@@ -0,0 +1,497 @@
+/*
+ * This source file is part of Cube.
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2023 Cube Team.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cube.client.file;
+
+import cell.util.log.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 本地文件存储。
+ * 管理客户端数据目录里接收到的文件，按照容量和数量限制以最近最少使用的顺序淘汰文件。
+ * 被固定的文件在解除固定之前不会被淘汰。交给调用者使用的文件以租约方式保留，
+ * 在调用者释放或租约到期之前不会被淘汰。默认不限制容量和数量。
+ * 指向同一数据的多个硬链接只计算一次容量，最后一个链接被淘汰时才释放容量。
+ */
+public class LocalFileStore {
+
+    private final File root;
+
+    private final Path rootPath;
+
+    /**
+     * 不进行管理的一级子目录名。
+     */
+    private final Set<String> excludes;
+
+    /**
+     * 按访问顺序排列的文件记录，最久未访问的在最前。
+     */
+    private final LinkedHashMap<String, Entry> entries;
+
+    /**
+     * 文件标识对应的记录数量，硬链接的多个路径共享同一个文件标识。
+     */
+    private final Map<Object, Integer> identities;
+
+    private long maxSize = Long.MAX_VALUE;
+
+    private int maxCount = Integer.MAX_VALUE;
+
+    private long totalSize = 0;
+
+    private long evictedCount = 0;
+
+    public LocalFileStore(File root) {
+        this.root = root;
+        this.rootPath = root.toPath().toAbsolutePath().normalize();
+        this.excludes = new HashSet<>();
+        this.entries = new LinkedHashMap<>(256, 0.75f, true);
+        this.identities = new HashMap<>();
+    }
+
+    /**
+     * 设置存储容量限制。
+     *
+     * @param maxSize 指定最大总字节数。
+     * @param maxCount 指定最大文件数量。
+     */
+    public void setCapacity(long maxSize, int maxCount) {
+        synchronized (this) {
+            this.maxSize = maxSize;
+            this.maxCount = maxCount;
+        }
+
+        this.trim();
+    }
+
+    /**
+     * 排除指定的一级子目录，该目录里的文件不会被淘汰。
+     *
+     * @param directoryName 指定子目录名。
+     */
+    public synchronized void exclude(String directoryName) {
+        this.excludes.add(directoryName);
+    }
+
+    /**
+     * 在后台线程扫描数据目录重建索引，避免阻塞启动。
+     * 扫描期间记录、固定或租用的文件保留其状态。
+     */
+    public void rebuildAsync() {
+        Thread thread = new Thread(this::rebuild, "LocalFileStore-Rebuild");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 扫描数据目录重建索引。
+     * 使用文件的最后修改时间作为初始访问顺序，扫描期间已有的记录排在扫描到的文件之后。
+     */
+    public void rebuild() {
+        long time = System.currentTimeMillis();
+
+        List<Entry> list = new ArrayList<>();
+        try {
+            Files.walkFileTree(this.rootPath, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    if (!dir.equals(rootPath) && dir.getParent().equals(rootPath)
+                            && isExcluded(dir.getFileName().toString())) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (attrs.isRegularFile()) {
+                        Entry entry = new Entry(file.toFile(), attrs.size(), attrs.lastModifiedTime().toMillis());
+                        if (null != attrs.fileKey()) {
+                            entry.identity = attrs.fileKey();
+                        }
+                        list.add(entry);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            Logger.w(this.getClass(), "#rebuild - Walk file tree failed : " + this.root.getPath(), e);
+        }
+
+        list.sort((a, b) -> Long.compare(a.timestamp, b.timestamp));
+
+        synchronized (this) {
+            // 扫描期间已有的记录较新，并且可能处于固定或租约状态，保留原记录
+            List<Map.Entry<String, Entry>> current = new ArrayList<>(this.entries.entrySet());
+            this.entries.clear();
+            this.identities.clear();
+            this.totalSize = 0;
+            for (Entry entry : list) {
+                String key = this.keyOf(entry.file);
+                if (!this.entries.containsKey(key)) {
+                    this.entries.put(key, entry);
+                }
+            }
+            for (Map.Entry<String, Entry> e : current) {
+                this.entries.remove(e.getKey());
+                this.entries.put(e.getKey(), e.getValue());
+            }
+            for (Entry entry : this.entries.values()) {
+                this.charge(entry);
+            }
+        }
+
+        Logger.i(this.getClass(), "#rebuild - " + list.size() + " files, elapsed : "
+                + (System.currentTimeMillis() - time) + " ms");
+
+        this.trim();
+    }
+
+    /**
+     * 记录新存入的文件，必要时淘汰最久未访问的文件。
+     *
+     * @param file 指定文件。
+     */
+    public void record(File file) {
+        if (!this.isManaged(file)) {
+            return;
+        }
+
+        Object identity = this.identityOf(file);
+
+        synchronized (this) {
+            String key = this.keyOf(file);
+            Entry entry = this.entries.get(key);
+            if (null != entry) {
+                this.discharge(entry);
+                entry.size = file.length();
+            }
+            else {
+                entry = new Entry(file, file.length(), System.currentTimeMillis());
+                this.entries.put(key, entry);
+            }
+            entry.identity = identity;
+            this.charge(entry);
+        }
+
+        this.trim();
+    }
+
+    /**
+     * 移除文件记录，不删除文件。
+     *
+     * @param file 指定文件。
+     */
+    public synchronized void remove(File file) {
+        Entry entry = this.entries.remove(this.keyOf(file));
+        if (null != entry) {
+            this.discharge(entry);
+        }
+    }
+
+    /**
+     * 标记文件被访问。
+     *
+     * @param file 指定文件。
+     */
+    public synchronized void touch(File file) {
+        this.entries.get(this.keyOf(file));
+    }
+
+    /**
+     * 为交给调用者使用的文件设置租约，并标记文件被访问。
+     * 租约期间文件不会被淘汰，调用者使用完毕后应调用 {@link #release(File)} 。
+     * 租约到期后即使未释放也可以被淘汰，避免调用者未释放时文件永久保留。
+     *
+     * @param file 指定文件。
+     * @param timeout 指定租约时长，单位：毫秒。
+     */
+    public synchronized void lease(File file, long timeout) {
+        if (!this.isManaged(file)) {
+            return;
+        }
+
+        String key = this.keyOf(file);
+        Entry entry = this.entries.get(key);
+        if (null == entry) {
+            entry = new Entry(file, file.length(), System.currentTimeMillis());
+            entry.identity = this.identityOf(file);
+            this.entries.put(key, entry);
+            this.charge(entry);
+        }
+
+        ++entry.leases;
+        entry.leaseExpiry = Math.max(entry.leaseExpiry, System.currentTimeMillis() + timeout);
+    }
+
+    /**
+     * 释放文件的租约。
+     *
+     * @param file 指定文件。
+     */
+    public void release(File file) {
+        synchronized (this) {
+            Entry entry = this.entries.get(this.keyOf(file));
+            if (null == entry || entry.leases == 0) {
+                return;
+            }
+
+            if (--entry.leases == 0) {
+                entry.leaseExpiry = 0;
+            }
+        }
+
+        this.trim();
+    }
+
+    /**
+     * 固定文件，被固定的文件不会被淘汰。可以多次固定，需对应次数解除固定。
+     *
+     * @param file 指定文件。
+     */
+    public synchronized void pin(File file) {
+        if (!this.isManaged(file)) {
+            return;
+        }
+
+        String key = this.keyOf(file);
+        Entry entry = this.entries.get(key);
+        if (null == entry) {
+            // 文件可能尚未写入，先创建记录
+            entry = new Entry(file, 0, System.currentTimeMillis());
+            this.entries.put(key, entry);
+            this.charge(entry);
+        }
+        ++entry.pins;
+    }
+
+    /**
+     * 解除文件固定。
+     *
+     * @param file 指定文件。
+     */
+    public void unpin(File file) {
+        synchronized (this) {
+            Entry entry = this.entries.get(this.keyOf(file));
+            if (null == entry || entry.pins == 0) {
+                return;
+            }
+            --entry.pins;
+        }
+
+        this.trim();
+    }
+
+    /**
+     * 获取当前记录的文件总大小。
+     *
+     * @return 返回文件总字节数。
+     */
+    public synchronized long getTotalSize() {
+        return this.totalSize;
+    }
+
+    /**
+     * 获取当前记录的文件数量，同一文件的多个硬链接计为一个文件。
+     *
+     * @return 返回文件数量。
+     */
+    public synchronized int numFiles() {
+        return this.identities.size();
+    }
+
+    /**
+     * 获取累计淘汰的文件数量。
+     *
+     * @return 返回累计淘汰的文件数量。
+     */
+    public synchronized long getEvictedCount() {
+        return this.evictedCount;
+    }
+
+    /**
+     * 按照容量限制淘汰文件。
+     */
+    public void trim() {
+        List<File> evicted = new ArrayList<>();
+
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            Iterator<Map.Entry<String, Entry>> iter = this.entries.entrySet().iterator();
+            while (iter.hasNext() && (this.totalSize > this.maxSize || this.identities.size() > this.maxCount)) {
+                Entry entry = iter.next().getValue();
+                if (entry.pins > 0 || (entry.leases > 0 && entry.leaseExpiry > now)) {
+                    continue;
+                }
+
+                iter.remove();
+                this.discharge(entry);
+
+                if (entry.file.exists()) {
+                    evicted.add(entry.file);
+                    ++this.evictedCount;
+                }
+            }
+        }
+
+        for (File file : evicted) {
+            if (file.delete()) {
+                this.deleteEmptyParents(file);
+            }
+            else {
+                Logger.w(this.getClass(), "#trim - Delete file failed : " + file.getPath());
+            }
+        }
+
+        if (!evicted.isEmpty() && Logger.isDebugLevel()) {
+            Logger.d(this.getClass(), "#trim - Evicted " + evicted.size() + " files");
+        }
+    }
+
+    private void deleteEmptyParents(File file) {
+        File dir = file.getParentFile();
+        while (null != dir && !dir.toPath().toAbsolutePath().normalize().equals(this.rootPath)) {
+            String[] children = dir.list();
+            if (null == children || children.length > 0 || !dir.delete()) {
+                break;
+            }
+            dir = dir.getParentFile();
+        }
+    }
+
+    /**
+     * 计入记录的容量，同一文件标识只计入一次。
+     */
+    private void charge(Entry entry) {
+        Object identity = entry.identityKey();
+        Integer count = this.identities.get(identity);
+        if (null == count) {
+            this.identities.put(identity, 1);
+            this.totalSize += entry.size;
+        }
+        else {
+            this.identities.put(identity, count + 1);
+        }
+    }
+
+    /**
+     * 扣除记录的容量，同一文件标识的最后一个记录移除时才扣除。
+     */
+    private void discharge(Entry entry) {
+        Object identity = entry.identityKey();
+        Integer count = this.identities.get(identity);
+        if (null == count || count <= 1) {
+            this.identities.remove(identity);
+            this.totalSize -= entry.size;
+        }
+        else {
+            this.identities.put(identity, count - 1);
+        }
+    }
+
+    /**
+     * 获取文件标识，例如文件的 inode 。不支持时返回 {@code null} 。
+     */
+    private Object identityOf(File file) {
+        try {
+            return Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+        } catch (IOException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    private synchronized boolean isExcluded(String directoryName) {
+        return this.excludes.contains(directoryName);
+    }
+
+    private boolean isManaged(File file) {
+        Path path = file.toPath().toAbsolutePath().normalize();
+        if (!path.startsWith(this.rootPath) || path.equals(this.rootPath)) {
+            return false;
+        }
+
+        Path relative = this.rootPath.relativize(path);
+        return !(relative.getNameCount() > 1 && this.isExcluded(relative.getName(0).toString()));
+    }
+
+    private String keyOf(File file) {
+        return file.toPath().toAbsolutePath().normalize().toString();
+    }
+
+    /**
+     * 文件记录。
+     */
+    private class Entry {
+
+        protected final File file;
+
+        protected long size;
+
+        protected final long timestamp;
+
+        protected int pins = 0;
+
+        protected int leases = 0;
+
+        protected long leaseExpiry = 0;
+
+        /**
+         * 文件标识，为 {@code null} 时以路径作为标识。
+         */
+        protected Object identity;
+
+        protected Entry(File file, long size, long timestamp) {
+            this.file = file;
+            this.size = size;
+            this.timestamp = timestamp;
+        }
+
+        protected Object identityKey() {
+            return (null != this.identity) ? this.identity : this.file;
+        }
+    }
+}
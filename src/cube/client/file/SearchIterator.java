@@ -0,0 +1,289 @@
+/*
+ * This source file is part of Cube.
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2023 Cube Team.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cube.client.file;
+
+import cell.core.talk.dialect.ActionDialect;
+import cell.util.log.Logger;
+import cube.client.ActionListener;
+import cube.client.Client;
+import cube.client.Notifier;
+import cube.common.notice.NoticeData;
+import cube.common.state.FileStorageStateCode;
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+/**
+ * 检索结果迭代器。
+ * 服务器异步推送的检索结果进入有界缓冲区，调用者边接收边处理，不必等待全部结果。
+ * 推送在连接的接收线程上处理，因此从不等待：缓冲区已满时迭代器以失败结束并丢弃缓冲的结果，
+ * 等待只发生在调用者线程的 {@link #hasNext()} 里。不再需要剩余结果时应调用 {@link #close()} 。
+ *
+ * @param <T> 检索结果的类型。
+ */
+public class SearchIterator<T> implements Iterator<T>, Closeable {
+
+    /**
+     * 默认缓冲区容量。
+     */
+    public final static int DEFAULT_CAPACITY = 4096;
+
+    /**
+     * 默认等待时长。等待下一条结果超过该时长时结束迭代。
+     */
+    public final static long DEFAULT_TIMEOUT = 5 * 60 * 1000;
+
+    private final static ExecutorService sExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "SearchIterator");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Client client;
+
+    private final String actionName;
+
+    private final ActionDialect request;
+
+    private final Function<JSONObject, T> creator;
+
+    private final int capacity;
+
+    private final long timeout;
+
+    private final Notifier notifier;
+
+    private final LinkedList<T> buffer;
+
+    private final ActionListener actionListener;
+
+    /**
+     * 结果总数，服务器应答前为 {@code -1} 。
+     */
+    private int total = -1;
+
+    private int received = 0;
+
+    private boolean closed = false;
+
+    private boolean failed = false;
+
+    private boolean overflowed = false;
+
+    private boolean released = false;
+
+    protected SearchIterator(Client client, String actionName, ActionDialect request,
+                             Function<JSONObject, T> creator, int capacity, long timeout) {
+        this.client = client;
+        this.actionName = actionName;
+        this.request = request;
+        this.creator = creator;
+        this.capacity = capacity;
+        this.timeout = timeout;
+        this.notifier = client.getReceiver().inject();
+        this.buffer = new LinkedList<>();
+        this.actionListener = new ActionListener() {
+            @Override
+            public void onAction(ActionDialect actionDialect) {
+                JSONObject notifierJson = actionDialect.getParamAsJson(Notifier.AsyncParamName);
+                if (notifier.equals(notifierJson)) {
+                    offer(creator.apply(actionDialect.getParamAsJson(NoticeData.DATA)));
+                }
+            }
+        };
+    }
+
+    /**
+     * 发送检索请求。请求在后台线程发送，服务器应答前推送的结果同样进入缓冲区。
+     */
+    protected void start() {
+        this.client.getReceiver().addActionListener(this.actionName, this.actionListener);
+
+        sExecutor.execute(() -> {
+            ActionDialect result = this.client.getConnector().send(this.notifier, this.request);
+
+            synchronized (this.buffer) {
+                if (null == result) {
+                    if (!this.closed) {
+                        Logger.w(this.getClass(), "#start - Network error : " + this.actionName);
+                        this.failed = true;
+                    }
+                }
+                else if (result.getParamAsInt(NoticeData.CODE) == FileStorageStateCode.Ok.code) {
+                    JSONObject data = result.getParamAsJson(NoticeData.DATA);
+                    this.total = data.getInt("total");
+                }
+                else {
+                    this.total = 0;
+                }
+
+                this.buffer.notifyAll();
+            }
+        });
+    }
+
+    /**
+     * 获取结果总数。
+     *
+     * @return 返回结果总数，服务器尚未应答时返回 {@code -1} 。
+     */
+    public int getTotal() {
+        synchronized (this.buffer) {
+            return this.total;
+        }
+    }
+
+    /**
+     * 检索请求是否因网络错误或缓冲区溢出失败。
+     *
+     * @return 如果请求失败返回 {@code true} 。
+     */
+    public boolean isFailed() {
+        synchronized (this.buffer) {
+            return this.failed;
+        }
+    }
+
+    /**
+     * 是否因调用者读取不及时导致缓冲区溢出。
+     *
+     * @return 如果缓冲区溢出返回 {@code true} 。
+     */
+    public boolean isOverflowed() {
+        synchronized (this.buffer) {
+            return this.overflowed;
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        synchronized (this.buffer) {
+            long deadline = System.currentTimeMillis() + this.timeout;
+            while (this.buffer.isEmpty()) {
+                if (this.closed || this.failed || (this.total >= 0 && this.received >= this.total)) {
+                    break;
+                }
+
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    Logger.w(this.getClass(), "#hasNext - Timeout : " + this.actionName + " - "
+                            + this.received + "/" + this.total);
+                    this.closed = true;
+                    break;
+                }
+
+                try {
+                    this.buffer.wait(remaining);
+                } catch (InterruptedException e) {
+                    this.closed = true;
+                    break;
+                }
+            }
+
+            if (!this.buffer.isEmpty()) {
+                return true;
+            }
+        }
+
+        this.release();
+        return false;
+    }
+
+    @Override
+    public T next() {
+        if (!this.hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        synchronized (this.buffer) {
+            return this.buffer.removeFirst();
+        }
+    }
+
+    /**
+     * 关闭迭代器，丢弃未读取的结果。
+     */
+    @Override
+    public void close() {
+        synchronized (this.buffer) {
+            this.closed = true;
+            this.buffer.clear();
+            this.buffer.notifyAll();
+        }
+
+        this.release();
+    }
+
+    /**
+     * 放入推送的结果。在接收线程上执行，不能等待。
+     */
+    private void offer(T item) {
+        synchronized (this.buffer) {
+            if (this.closed || this.failed) {
+                return;
+            }
+
+            if (this.buffer.size() >= this.capacity) {
+                // 调用者读取不及时，结束迭代而不阻塞接收线程
+                Logger.w(this.getClass(), "#offer - Buffer full, failed : " + this.actionName + " - "
+                        + this.received + "/" + this.total);
+                this.failed = true;
+                this.overflowed = true;
+                this.buffer.clear();
+                this.buffer.notifyAll();
+                return;
+            }
+
+            this.buffer.add(item);
+            ++this.received;
+            this.buffer.notifyAll();
+        }
+    }
+
+    private void release() {
+        synchronized (this.buffer) {
+            if (this.released) {
+                return;
+            }
+            this.released = true;
+        }
+
+        // 未应答的请求不再等待
+        if (!this.notifier.isDone()) {
+            this.notifier.abandon();
+        }
+
+        // 不能在推送回调里移除监听器，回调所在线程正在遍历监听器列表
+        this.client.getReceiver().removeActionListener(this.actionName, this.actionListener);
+    }
+}
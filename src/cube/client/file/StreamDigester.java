@@ -0,0 +1,185 @@
+/*
+ * This source file is part of Cube.
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2023 Cube Team.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cube.client.file;
+
+import cube.util.FileUtils;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 数据流摘要计算器。
+ * 写入线程把数据块交给摘要线程计算 MD5 和 SHA1，写入与摘要计算并行进行。
+ * 缓冲池大小限制了内存占用，摘要计算落后时写入线程等待。
+ */
+public class StreamDigester {
+
+    private final static int BUFFER_SIZE = 64 * 1024;
+
+    private final static int POOL_SIZE = 4;
+
+    private final static Chunk END = new Chunk(null, 0);
+
+    private final static AtomicInteger sCount = new AtomicInteger(0);
+
+    private final static ExecutorService sExecutor = Executors.newCachedThreadPool((runnable) -> {
+        Thread thread = new Thread(runnable, "StreamDigester-" + sCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final BlockingQueue<byte[]> freeBuffers = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    /**
+     * 待计算的数据块。数据块数量受缓冲池限制，因此结束标记总能放入队列。
+     */
+    private final BlockingQueue<Chunk> digestQueue = new ArrayBlockingQueue<>(POOL_SIZE + 1);
+
+    private final Future<FileDigest> future;
+
+    private byte[] current;
+
+    private int position = 0;
+
+    private boolean finished = false;
+
+    private boolean failed = false;
+
+    public StreamDigester() {
+        for (int i = 0; i < POOL_SIZE; ++i) {
+            this.freeBuffers.add(new byte[BUFFER_SIZE]);
+        }
+
+        this.future = sExecutor.submit(() -> this.compute());
+    }
+
+    /**
+     * 追加数据。摘要计算失败后忽略追加的数据。
+     *
+     * @param bytes 数据。
+     * @param offset 数据偏移量。
+     * @param length 数据长度。
+     * @throws InterruptedException
+     */
+    public void update(byte[] bytes, int offset, int length) throws InterruptedException {
+        while (length > 0 && !this.failed) {
+            if (null == this.current) {
+                this.current = this.freeBuffers.poll(100, TimeUnit.MILLISECONDS);
+                if (null == this.current) {
+                    // 摘要线程已结束时不再等待缓冲区
+                    this.failed = this.future.isDone();
+                    continue;
+                }
+                this.position = 0;
+            }
+
+            int size = Math.min(length, this.current.length - this.position);
+            System.arraycopy(bytes, offset, this.current, this.position, size);
+            this.position += size;
+            offset += size;
+            length -= size;
+
+            if (this.position == this.current.length) {
+                this.submit();
+            }
+        }
+    }
+
+    /**
+     * 结束数据并等待摘要计算完成。
+     *
+     * @param timeout 超时时长，单位：毫秒。
+     * @return 返回数据摘要，计算失败或超时返回 {@code null} 值。
+     */
+    public FileDigest finish(long timeout) {
+        if (this.failed) {
+            return null;
+        }
+
+        try {
+            if (!this.finished) {
+                this.finished = true;
+                if (null != this.current) {
+                    this.submit();
+                }
+                this.digestQueue.put(END);
+            }
+
+            return this.future.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            this.future.cancel(true);
+            return null;
+        }
+    }
+
+    private void submit() throws InterruptedException {
+        this.digestQueue.put(new Chunk(this.current, this.position));
+        this.current = null;
+        this.position = 0;
+    }
+
+    private FileDigest compute() throws InterruptedException, NoSuchAlgorithmException {
+        MessageDigest md5 = MessageDigest.getInstance("MD5");
+        MessageDigest sha1 = MessageDigest.getInstance("SHA1");
+
+        while (true) {
+            Chunk chunk = this.digestQueue.take();
+            if (chunk == END) {
+                break;
+            }
+
+            md5.update(chunk.bytes, 0, chunk.length);
+            sha1.update(chunk.bytes, 0, chunk.length);
+            this.freeBuffers.put(chunk.bytes);
+        }
+
+        return new FileDigest(FileUtils.bytesToHexString(md5.digest()),
+                FileUtils.bytesToHexString(sha1.digest()));
+    }
+
+    /**
+     * 数据块。
+     */
+    private static class Chunk {
+
+        protected final byte[] bytes;
+
+        protected final int length;
+
+        protected Chunk(byte[] bytes, int length) {
+            this.bytes = bytes;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * This source file is part of Cube.
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2023 Cube Team.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cube.client.file;
+
+import cube.util.FileUtils;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * 断点续传检查点。
+ * 记录文件码、已确认的偏移量以及已确认部分的摘要。摘要对象的状态无法序列化，
+ * 因此恢复时重新计算已确认部分的摘要，并与记录的摘要比较以确认文件未被修改。
+ */
+public class UploadCheckpoint {
+
+    private final File checkpointFile;
+
+    private final String path;
+
+    private final String fileCode;
+
+    private final long size;
+
+    private final long lastModified;
+
+    private long offset;
+
+    private String md5Code;
+
+    private String sha1Code;
+
+    private UploadCheckpoint(File checkpointFile, File file, String fileCode) {
+        this.checkpointFile = checkpointFile;
+        this.path = file.getAbsolutePath();
+        this.fileCode = fileCode;
+        this.size = file.length();
+        this.lastModified = file.lastModified();
+        this.offset = 0;
+    }
+
+    private UploadCheckpoint(File checkpointFile, JSONObject json) {
+        this.checkpointFile = checkpointFile;
+        this.path = json.getString("path");
+        this.fileCode = json.getString("fileCode");
+        this.size = json.getLong("size");
+        this.lastModified = json.getLong("lastModified");
+        this.offset = json.getLong("offset");
+        this.md5Code = json.optString("md5", null);
+        this.sha1Code = json.optString("sha1", null);
+    }
+
+    /**
+     * 加载指定文件的检查点，如果没有检查点或者文件已被修改则创建新的检查点。
+     *
+     * @param directory 检查点目录。
+     * @param file 上传的文件。
+     * @param fileCode 新检查点使用的文件码。
+     * @return 返回检查点。
+     */
+    public static UploadCheckpoint load(File directory, File file, String fileCode) {
+        File checkpointFile = new File(directory, makeName(file));
+
+        if (checkpointFile.exists()) {
+            try {
+                byte[] data = Files.readAllBytes(checkpointFile.toPath());
+                JSONObject json = new JSONObject(new String(data, StandardCharsets.UTF_8));
+                UploadCheckpoint checkpoint = new UploadCheckpoint(checkpointFile, json);
+                if (checkpoint.path.equals(file.getAbsolutePath()) && checkpoint.size == file.length()
+                        && checkpoint.lastModified == file.lastModified()) {
+                    return checkpoint;
+                }
+            } catch (IOException | JSONException e) {
+                e.printStackTrace();
+            }
+        }
+
+        return new UploadCheckpoint(checkpointFile, file, fileCode);
+    }
+
+    private static String makeName(File file) {
+        try {
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            byte[] hash = md5.digest(file.getAbsolutePath().getBytes(StandardCharsets.UTF_8));
+            return FileUtils.bytesToHexString(hash) + ".checkpoint";
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(file.getAbsolutePath().hashCode()) + ".checkpoint";
+        }
+    }
+
+    public String getFileCode() {
+        return this.fileCode;
+    }
+
+    /**
+     * 获取已确认的偏移量。
+     *
+     * @return 返回已确认的偏移量。
+     */
+    public long getOffset() {
+        return this.offset;
+    }
+
+    /**
+     * 获取已确认部分的 MD5 码。
+     *
+     * @return 返回已确认部分的 MD5 码。
+     */
+    public String getMD5Code() {
+        return this.md5Code;
+    }
+
+    /**
+     * 获取已确认部分的 SHA1 码。
+     *
+     * @return 返回已确认部分的 SHA1 码。
+     */
+    public String getSHA1Code() {
+        return this.sha1Code;
+    }
+
+    /**
+     * 更新已确认的偏移量和摘要，并写入磁盘。
+     *
+     * @param offset 已确认的偏移量。
+     * @param md5Code 已确认部分的 MD5 码。
+     * @param sha1Code 已确认部分的 SHA1 码。
+     * @throws IOException
+     */
+    public void update(long offset, String md5Code, String sha1Code) throws IOException {
+        this.offset = offset;
+        this.md5Code = md5Code;
+        this.sha1Code = sha1Code;
+        this.save();
+    }
+
+    /**
+     * 重置检查点，从头开始上传。
+     */
+    public void reset() {
+        this.offset = 0;
+        this.md5Code = null;
+        this.sha1Code = null;
+        this.delete();
+    }
+
+    /**
+     * 删除检查点文件。
+     */
+    public void delete() {
+        try {
+            Files.deleteIfExists(this.checkpointFile.toPath());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void save() throws IOException {
+        File parent = this.checkpointFile.getParentFile();
+        if (!parent.exists()) {
+            parent.mkdirs();
+        }
+
+        // 先写临时文件再替换，避免中断时留下不完整的检查点
+        Path temp = new File(parent, this.checkpointFile.getName() + ".tmp").toPath();
+        Files.write(temp, this.toJSON().toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(temp, this.checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        json.put("path", this.path);
+        json.put("fileCode", this.fileCode);
+        json.put("size", this.size);
+        json.put("lastModified", this.lastModified);
+        json.put("offset", this.offset);
+        if (null != this.md5Code) {
+            json.put("md5", this.md5Code);
+        }
+        if (null != this.sha1Code) {
+            json.put("sha1", this.sha1Code);
+        }
+        return json;
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * This source file is part of Cube.
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2023 Cube Team.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cube.client.file;
+
+import cube.util.FileType;
+import cube.util.FileUtils;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * 上传压缩策略。
+ * 根据文件类型判断文件是否适合压缩，图片、音视频和压缩包等已压缩的格式不再压缩。
+ */
+public final class UploadCompression {
+
+    /**
+     * Deflate 压缩算法名。
+     */
+    public final static String DEFLATE = "deflate";
+
+    /**
+     * 适合压缩的最小文件大小。
+     */
+    public final static long MIN_SIZE = 4 * 1024;
+
+    /**
+     * 可压缩的类型名和扩展名。
+     */
+    private final static Set<String> sCompressible = new HashSet<>(Arrays.asList(
+            "text", "txt", "log", "csv", "tsv", "json", "xml", "html", "htm", "css", "js", "md", "yaml", "yml",
+            "ini", "conf", "sql", "java", "py", "c", "cpp", "h", "sh", "svg",
+            "doc", "xls", "ppt", "rtf", "bmp", "wav"));
+
+    /**
+     * 已压缩的类型名和扩展名。
+     */
+    private final static Set<String> sCompressed = new HashSet<>(Arrays.asList(
+            "jpeg", "jpg", "png", "gif", "webp", "heic", "ico",
+            "mp3", "aac", "ogg", "m4a", "amr", "flac", "mp4", "mov", "avi", "mkv", "flv", "webm", "ts",
+            "zip", "rar", "gz", "gzip", "7z", "bz2", "xz", "tgz", "jar", "apk",
+            "docx", "xlsx", "pptx", "pdf"));
+
+    private UploadCompression() {
+    }
+
+    /**
+     * 判断文件是否适合压缩上传。
+     *
+     * @param file 指定文件。
+     * @return 如果适合压缩返回 {@code true} 。
+     */
+    public static boolean isCompressible(File file) {
+        return isCompressible(file.getName(), file.length());
+    }
+
+    /**
+     * 判断指定名称和大小的数据是否适合压缩上传。
+     *
+     * @param name 指定文件名。
+     * @param size 指定数据大小。
+     * @return 如果适合压缩返回 {@code true} 。
+     */
+    public static boolean isCompressible(String name, long size) {
+        if (size < MIN_SIZE) {
+            return false;
+        }
+
+        // 优先使用识别出的文件类型，无法识别时使用扩展名
+        FileType fileType = FileUtils.extractFileExtensionType(name);
+        if (null != fileType) {
+            String typeName = fileType.name().toLowerCase();
+            if (sCompressed.contains(typeName)) {
+                return false;
+            }
+            else if (sCompressible.contains(typeName)) {
+                return true;
+            }
+        }
+
+        int index = name.lastIndexOf('.');
+        if (index < 0) {
+            return false;
+        }
+
+        return sCompressible.contains(name.substring(index + 1).toLowerCase());
+    }
+}
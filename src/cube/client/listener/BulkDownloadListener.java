@@ -0,0 +1,61 @@
+/*
+ * This source file is part of Cube.
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2023 Cube Team.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cube.client.listener;
+
+import cube.client.file.BulkDownload;
+import cube.common.entity.FileLabel;
+
+/**
+ * 批量下载监听器。
+ */
+public interface BulkDownloadListener {
+
+    /**
+     * 文件已下载完成。
+     *
+     * @param bulkDownload 批量下载任务。
+     * @param fileCode 文件码。
+     * @param fileLabel 设置了本地文件的文件标签。
+     */
+    void onCompleted(BulkDownload bulkDownload, String fileCode, FileLabel fileLabel);
+
+    /**
+     * 文件下载失败。
+     *
+     * @param bulkDownload 批量下载任务。
+     * @param fileCode 文件码。
+     * @param throwable 失败原因。
+     */
+    void onFailed(BulkDownload bulkDownload, String fileCode, Throwable throwable);
+
+    /**
+     * 所有文件处理结束。
+     *
+     * @param bulkDownload 批量下载任务。
+     */
+    void onFinished(BulkDownload bulkDownload);
+}
@@ -0,0 +1,72 @@
+/*
+ * This source file is part of Cube.
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2023 Cube Team.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cube.client.listener;
+
+import cube.client.file.BulkUpload;
+import cube.common.entity.FileLabel;
+
+import java.io.File;
+
+/**
+ * 批量上传监听器。
+ */
+public interface BulkUploadListener {
+
+    /**
+     * 文件上传进度。批量任务的总进度通过 {@link BulkUpload} 获取。
+     *
+     * @param bulkUpload 批量上传任务。
+     * @param file 正在上传的文件。
+     * @param processedSize 该文件已上传的数据大小。
+     */
+    void onUploading(BulkUpload bulkUpload, File file, long processedSize);
+
+    /**
+     * 文件已存在或已上传完成。
+     *
+     * @param bulkUpload 批量上传任务。
+     * @param file 文件。
+     * @param fileLabel 文件标签。
+     */
+    void onCompleted(BulkUpload bulkUpload, File file, FileLabel fileLabel);
+
+    /**
+     * 文件上传失败。
+     *
+     * @param bulkUpload 批量上传任务。
+     * @param file 文件。
+     * @param throwable 失败原因。
+     */
+    void onFailed(BulkUpload bulkUpload, File file, Throwable throwable);
+
+    /**
+     * 所有文件处理结束。
+     *
+     * @param bulkUpload 批量上传任务。
+     */
+    void onFinished(BulkUpload bulkUpload);
+}
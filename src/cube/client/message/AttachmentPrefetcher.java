@@ -0,0 +1,320 @@
+/*
+ * This source file is part of Cube.
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2023 Cube Team.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cube.client.message;
+
+import cell.util.log.Logger;
+import cube.client.file.FileProcessor;
+import cube.common.entity.FileAttachment;
+import cube.common.entity.FileLabel;
+import cube.common.entity.Message;
+import cube.util.FileType;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 消息附件预取器。
+ * 收到带附件的消息时，在消息监听器处理消息的同时于后台下载符合策略的附件。
+ * 监听器再下载该文件时，会加入正在进行的传输或者直接使用本地已有的文件。
+ */
+public class AttachmentPrefetcher {
+
+    /**
+     * 默认预取的最大文件大小。
+     */
+    public final static long DEFAULT_MAX_FILE_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * 默认等待和正在预取的文件总大小上限。
+     */
+    public final static long DEFAULT_BUDGET = 256 * 1024 * 1024;
+
+    private final FileProcessor processor;
+
+    private final ThreadPoolExecutor executor;
+
+    private final long budget;
+
+    private volatile long maxFileSize = DEFAULT_MAX_FILE_SIZE;
+
+    /**
+     * 预取的文件类型名或扩展名，为空时不限制类型。
+     */
+    private volatile Set<String> fileTypes = new HashSet<>();
+
+    /**
+     * 等待和正在预取的文件码。
+     */
+    private final Set<String> pendingSet = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong pendingSize = new AtomicLong(0);
+
+    private final AtomicLong completedCount = new AtomicLong(0);
+
+    private final AtomicLong failedCount = new AtomicLong(0);
+
+    private final AtomicLong skippedCount = new AtomicLong(0);
+
+    private final AtomicLong droppedCount = new AtomicLong(0);
+
+    /**
+     * 构造函数。
+     *
+     * @param processor 指定文件处理器。
+     */
+    public AttachmentPrefetcher(FileProcessor processor) {
+        this(processor, 2, 64, DEFAULT_BUDGET);
+    }
+
+    /**
+     * 构造函数。
+     *
+     * @param processor 指定文件处理器。
+     * @param parallelism 同时预取的文件数量。
+     * @param maxQueued 等待预取的最大文件数量，超出时丢弃新的预取请求。
+     * @param budget 等待和正在预取的文件总大小上限。
+     */
+    public AttachmentPrefetcher(FileProcessor processor, int parallelism, int maxQueued, long budget) {
+        this.processor = processor;
+        this.budget = budget;
+
+        AtomicInteger count = new AtomicInteger(0);
+        this.executor = new ThreadPoolExecutor(Math.max(1, parallelism), Math.max(1, parallelism),
+                60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(Math.max(1, maxQueued)), (runnable) -> {
+            Thread thread = new Thread(runnable, "AttachmentPrefetcher-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * 设置预取的最大文件大小。
+     *
+     * @param maxFileSize 最大文件大小。
+     */
+    public void setMaxFileSize(long maxFileSize) {
+        this.maxFileSize = maxFileSize;
+    }
+
+    /**
+     * 设置预取的文件类型，例如 {@code "jpg"} 、 {@code "pdf"} 。为空时预取所有类型。
+     *
+     * @param fileTypes 文件类型名或扩展名列表。
+     */
+    public void setFileTypes(Collection<String> fileTypes) {
+        Set<String> set = new HashSet<>();
+        for (String type : fileTypes) {
+            set.add(type.toLowerCase());
+        }
+        this.fileTypes = set;
+    }
+
+    /**
+     * 预取消息里的附件。
+     *
+     * @param message 指定消息。
+     */
+    public void prefetch(Message message) {
+        FileAttachment attachment = message.getAttachment();
+        if (null == attachment) {
+            return;
+        }
+
+        List<FileLabel> fileLabels = attachment.getFileLabels();
+        if (null == fileLabels) {
+            fileLabels = new ArrayList<>();
+            if (null != attachment.getFileLabel()) {
+                fileLabels.add(attachment.getFileLabel());
+            }
+        }
+
+        for (FileLabel fileLabel : fileLabels) {
+            this.prefetch(fileLabel);
+        }
+    }
+
+    private void prefetch(FileLabel fileLabel) {
+        String fileCode = fileLabel.getFileCode();
+        long size = fileLabel.getFileSize();
+
+        if (this.executor.isShutdown() || !this.accept(fileLabel)) {
+            this.skippedCount.incrementAndGet();
+            return;
+        }
+
+        if (!this.pendingSet.add(fileCode)) {
+            // 已在预取
+            return;
+        }
+
+        if (this.pendingSize.addAndGet(size) > this.budget) {
+            this.release(fileCode, size);
+            this.droppedCount.incrementAndGet();
+            return;
+        }
+
+        try {
+            this.executor.execute(new PrefetchTask(fileCode, size));
+        } catch (RejectedExecutionException e) {
+            this.release(fileCode, size);
+            this.droppedCount.incrementAndGet();
+        }
+    }
+
+    private boolean accept(FileLabel fileLabel) {
+        if (fileLabel.getFileSize() > this.maxFileSize) {
+            return false;
+        }
+
+        Set<String> types = this.fileTypes;
+        if (types.isEmpty()) {
+            return true;
+        }
+
+        FileType fileType = fileLabel.getFileType();
+        if (null != fileType && types.contains(fileType.name().toLowerCase())) {
+            return true;
+        }
+
+        String name = fileLabel.getFileName();
+        int index = (null != name) ? name.lastIndexOf('.') : -1;
+        return (index >= 0 && types.contains(name.substring(index + 1).toLowerCase()));
+    }
+
+    private void release(String fileCode, long size) {
+        this.pendingSize.addAndGet(-size);
+        this.pendingSet.remove(fileCode);
+    }
+
+    /**
+     * 指定文件是否正在预取。
+     *
+     * @param fileCode 指定文件码。
+     * @return 如果正在预取返回 {@code true} 。
+     */
+    public boolean isPrefetching(String fileCode) {
+        return this.pendingSet.contains(fileCode);
+    }
+
+    /**
+     * 停止预取。等待中的预取请求被丢弃并释放其占用的额度，正在进行的传输仍会完成。
+     */
+    public void close() {
+        List<Runnable> list = new ArrayList<>();
+        this.executor.getQueue().drainTo(list);
+        this.executor.shutdown();
+
+        for (Runnable runnable : list) {
+            if (runnable instanceof PrefetchTask) {
+                PrefetchTask task = (PrefetchTask) runnable;
+                this.release(task.fileCode, task.size);
+            }
+        }
+        this.droppedCount.addAndGet(list.size());
+    }
+
+    public long getCompletedCount() {
+        return this.completedCount.get();
+    }
+
+    public long getFailedCount() {
+        return this.failedCount.get();
+    }
+
+    /**
+     * 获取不符合预取策略而跳过的文件数量。
+     *
+     * @return 返回跳过的文件数量。
+     */
+    public long getSkippedCount() {
+        return this.skippedCount.get();
+    }
+
+    /**
+     * 获取超出预算或队列已满而丢弃的文件数量。
+     *
+     * @return 返回丢弃的文件数量。
+     */
+    public long getDroppedCount() {
+        return this.droppedCount.get();
+    }
+
+    /**
+     * 获取等待和正在预取的文件总大小。
+     *
+     * @return 返回文件总大小。
+     */
+    public long getPendingSize() {
+        return this.pendingSize.get();
+    }
+
+    /**
+     * 预取任务。
+     */
+    private class PrefetchTask implements Runnable {
+
+        protected final String fileCode;
+
+        protected final long size;
+
+        protected PrefetchTask(String fileCode, long size) {
+            this.fileCode = fileCode;
+            this.size = size;
+        }
+
+        @Override
+        public void run() {
+            try {
+                FileLabel result = processor.downloadFile(this.fileCode);
+                if (null != result) {
+                    // 预取只填充本地文件，不持有租约
+                    processor.releaseFile(result);
+                    completedCount.incrementAndGet();
+                }
+                else {
+                    failedCount.incrementAndGet();
+                }
+            } catch (RuntimeException e) {
+                Logger.w(AttachmentPrefetcher.class, "#prefetch - " + this.fileCode, e);
+                failedCount.incrementAndGet();
+            } finally {
+                release(this.fileCode, this.size);
+            }
+        }
+    }
+}
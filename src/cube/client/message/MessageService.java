@@ -4,6 +4,7 @@ import cell.core.talk.dialect.ActionDialect;
 import cell.util.Utils;
 import cell.util.log.Logger;
 import cube.client.*;
+import cube.client.file.FileLabelCache;
 import cube.client.file.FileUploader;
 import cube.client.listener.FileUploadListener;
 import cube.client.listener.MessageReceiveListener;
@@ -40,6 +41,8 @@ public class MessageService {
 
     private ConcurrentMap<String, MessageSendEvent> messageSendEventMap;
 
+    private AttachmentPrefetcher attachmentPrefetcher;
+
     public MessageService(Client client, Connector connector, Receiver receiver) {
         this.client = client;
         this.connector = connector;
@@ -48,6 +51,24 @@ public class MessageService {
         this.messageSendEventMap = new ConcurrentHashMap<>();
     }
 
+    /**
+     * 设置附件预取器。设置后收到带附件的消息时在后台预取附件。
+     *
+     * @param prefetcher 指定附件预取器，为 {@code null} 时停止预取。
+     */
+    public void setAttachmentPrefetcher(AttachmentPrefetcher prefetcher) {
+        this.attachmentPrefetcher = prefetcher;
+    }
+
+    /**
+     * 获取附件预取器。
+     *
+     * @return 返回附件预取器，未设置时返回 {@code null} 。
+     */
+    public AttachmentPrefetcher getAttachmentPrefetcher() {
+        return this.attachmentPrefetcher;
+    }
+
     /**
      * 注册监听指定联系人接收到的消息。
      *
@@ -476,7 +497,8 @@ public class MessageService {
             @Override
             public void emit(PromiseFuture<FileUploader.UploadMeta> promise) {
                 // 上传文件数据
-                client.getFileUploader().upload(pretender.getId(), pretender.getDomain().getName(), file, new FileUploadListener() {
+                client.getFileUploader().upload(pretender.getId(), pretender.getDomain().getName(), file,
+                        FileUploader.PRIORITY_NORMAL, BandwidthShaper.CLASS_MESSAGE, new FileUploadListener() {
                     @Override
                     public void onUploading(FileUploader.UploadMeta meta, long processedSize) {
                         Logger.d(Client.class, "#putFileWithPretender - onUploading : " +
@@ -499,50 +521,19 @@ public class MessageService {
         }).then(new Future<FileUploader.UploadMeta>() {
             @Override
             public void come(FileUploader.UploadMeta meta) {
-                // 放置文件
-                FileLabel fileLabel = putFileLabel(pretender, meta.fileCode, meta.file, meta.getMD5Code(), meta.getSHA1Code());
-                if (null == fileLabel) {
-                    // 放置标签失败
-                    synchronized (mutableFileLabel) {
-                        mutableFileLabel.notify();
-                    }
-                    return;
-                }
-
-                // 上传完成，查询文件标签
-                fileLabel = queryFileLabel(pretender.getDomain().getName(), fileLabel.getFileCode());
-                if (null == fileLabel) {
-                    synchronized (mutableFileLabel) {
-                        mutableFileLabel.notify();
-                    }
-                    return;
-                }
-
-                // 赋值
-                mutableFileLabel.value = fileLabel;
-
-                synchronized (mutableFileLabel) {
-                    mutableFileLabel.notify();
-                }
+                // 放置文件，应答里没有已注册的完整标签时再查询标签
+                FileLabel fileLabel = putFileLabel(pretender, meta.fileCode, meta.file, meta.getMD5Code(), meta.getSHA1Code(),
+                        meta.getCompression());
+                mutableFileLabel.complete(fileLabel);
             }
         }).catchReject(new Future<FileUploader.UploadMeta>() {
             @Override
             public void come(FileUploader.UploadMeta meta) {
-                synchronized (mutableFileLabel) {
-                    mutableFileLabel.notify();
-                }
+                mutableFileLabel.complete(null);
             }
         }).launch();
 
-        synchronized (mutableFileLabel) {
-            try {
-                mutableFileLabel.wait(5 * 60 * 1000);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        }
-
-        return mutableFileLabel.value;
+        return mutableFileLabel.waitCompleted(5 * 60 * 1000);
     }
 
     private boolean pushMessage(Message message, Contact pretender, Device device) {
@@ -574,6 +565,12 @@ public class MessageService {
      * @return
      */
     private FileLabel queryFileLabel(String domain, String fileCode) {
+        FileLabelCache cache = this.client.getFileLabelCache();
+        FileLabel fileLabel = cache.get(domain, fileCode);
+        if (null != fileLabel) {
+            return fileLabel;
+        }
+
         ActionDialect actionDialect = new ActionDialect(ClientAction.GetFile.name);
         actionDialect.addParam("domain", domain);
         actionDialect.addParam("fileCode", fileCode);
@@ -588,7 +585,9 @@ public class MessageService {
         }
 
         JSONObject data = result.getParamAsJson("fileLabel");
-        return new FileLabel(data);
+        fileLabel = new FileLabel(data);
+        cache.put(domain, fileLabel);
+        return fileLabel;
     }
 
     /**
@@ -599,9 +598,11 @@ public class MessageService {
      * @param file
      * @param md5Code
      * @param sha1Code
+     * @param compression
      * @return
      */
-    private FileLabel putFileLabel(Contact contact, String fileCode, File file, String md5Code, String sha1Code) {
+    private FileLabel putFileLabel(Contact contact, String fileCode, File file, String md5Code, String sha1Code,
+                                   String compression) {
         // 判断文件类型
         FileType fileType = FileUtils.extractFileExtensionType(file.getName());
 
@@ -617,10 +618,17 @@ public class MessageService {
 
         ActionDialect actionDialect = new ActionDialect(ClientAction.PutFile.name);
         actionDialect.addParam("fileLabel", fileLabel.toJSON());
+        if (null != compression) {
+            // 服务器按指定算法解压缩已接收的数据流
+            actionDialect.addParam("compression", compression);
+        }
 
         // 阻塞线程，并等待返回结果
         ActionDialect result = this.connector.send(notifier, actionDialect);
 
+        // 应答后再移除缓存，无论结果如何
+        this.client.getFileLabelCache().invalidate(contact.getDomain().getName(), fileCode);
+
         int code = result.getParamAsInt("code");
         if (code != FileStorageStateCode.Ok.code) {
             Logger.w(Client.class, "#putFileLabel - error : " + code);
@@ -628,7 +636,14 @@ public class MessageService {
         }
 
         JSONObject data = result.getParamAsJson("fileLabel");
-        return new FileLabel(data);
+        if (null == data || !data.has("fileURL")) {
+            // 应答里没有已生成访问地址的标签，查询已注册的标签
+            return this.queryFileLabel(contact.getDomain().getName(), fileCode);
+        }
+
+        FileLabel registered = new FileLabel(data);
+        this.client.getFileLabelCache().put(contact.getDomain().getName(), registered);
+        return registered;
     }
 
     /**
@@ -34,6 +34,7 @@ import cube.client.Client;
 import cube.client.Connector;
 import cube.client.Receiver;
 import cube.client.StreamListener;
+import cube.client.util.BandwidthShaper;
 import cube.robot.*;
 import cube.util.FileUtils;
 import org.json.JSONArray;
@@ -60,6 +61,11 @@ public class RobotController {
 
     private final static Path SCRIPT_PATH = Paths.get("data/robot/");
 
+    /**
+     * 报告文件的租约时长。
+     */
+    private final static long REPORT_LEASE_TIMEOUT = 30 * 60 * 1000;
+
     private Client client;
 
     private Connector connector;
@@ -284,15 +290,17 @@ public class RobotController {
         // 发送数据
         PrimitiveOutputStream os = this.connector.sendStream(NAME, relativePath);
         FileInputStream is = null;
+        BandwidthShaper shaper = this.client.getBandwidthShaper();
 
         try {
             is = new FileInputStream(source);
             byte[] buf = new byte[1024];
             int length = 0;
             while ((length = is.read(buf)) > 0) {
+                shaper.acquire(BandwidthShaper.CLASS_ROBOT, length);
                 os.write(buf, 0, length);
             }
-        } catch (IOException e) {
+        } catch (IOException | InterruptedException e) {
             return null;
         } finally {
             try {
@@ -377,6 +385,7 @@ public class RobotController {
     /**
      * 下载报告文件。
      * 该函数以阻塞方式执行，直到文件下载完成或者超时才返回。
+     * 返回的文件在调用 {@link #releaseReportFile(File)} 或租约到期之前不会被本地文件存储淘汰。
      *
      * @param filename 指定任务报告名。
      * @return 返回下载成功保存在本地的文件。
@@ -391,6 +400,9 @@ public class RobotController {
 
             @Override
             public void onCompleted(String streamName, File streamFile) {
+                // 回调期间文件处于固定状态，在解除固定之前加上租约
+                client.getFileStore().lease(streamFile, REPORT_LEASE_TIMEOUT);
+
                 synchronized (filePath) {
                     filePath.append(streamFile.getAbsolutePath());
 
@@ -413,6 +425,8 @@ public class RobotController {
             }
         }
 
+        this.receiver.removeStreamListener(filename);
+
         if (filePath.length() > 0) {
             return new File(filePath.toString());
         }
@@ -421,6 +435,15 @@ public class RobotController {
         }
     }
 
+    /**
+     * 释放报告文件的租约，之后该文件可以被淘汰。
+     *
+     * @param file 指定 {@link #downloadReportFile(String)} 返回的文件。
+     */
+    public void releaseReportFile(File file) {
+        this.client.getFileStore().release(file);
+    }
+
     public boolean processAction(ActionDialect actionDialect, Speakable speaker) {
         String action = actionDialect.getName();
 
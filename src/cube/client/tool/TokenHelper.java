@@ -40,6 +40,9 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
@@ -47,7 +50,21 @@ import java.util.concurrent.ConcurrentHashMap;
  */
 public final class TokenHelper {
 
-    private final static ConcurrentHashMap<Long, AuthToken> sContactTokenMap = new ConcurrentHashMap<>();
+    /**
+     * 缓存令牌的最长有效时长。
+     */
+    private final static long TOKEN_TTL = 10 * 60 * 1000;
+
+    /**
+     * 令牌到期前提前失效的时长。
+     */
+    private final static long EXPIRY_MARGIN = 60 * 1000;
+
+    /**
+     * 按连接器缓存的令牌，同一连接器内以域和联系人 ID 为键。连接器不再使用时缓存随之回收。
+     */
+    private final static Map<Connector, ConcurrentHashMap<String, CachedToken>> sTokenCache =
+            Collections.synchronizedMap(new WeakHashMap<>());
 
     private TokenHelper() {
     }
@@ -102,9 +119,30 @@ public final class TokenHelper {
      * @return
      */
     public static AuthToken getAuthToken(Connector connector, Receiver receiver, Long contactId) {
-        AuthToken token = sContactTokenMap.get(contactId);
-        if (null != token) {
-            return token;
+        return getAuthToken(connector, receiver, null, contactId);
+    }
+
+    /**
+     * 获取指定域里联系人的访问令牌。令牌在到期前从缓存返回。
+     *
+     * @param connector
+     * @param receiver
+     * @param domain 指定域名称，可以为 {@code null} 。
+     * @param contactId
+     * @return
+     */
+    public static AuthToken getAuthToken(Connector connector, Receiver receiver, String domain, Long contactId) {
+        String key = makeKey(domain, contactId);
+        ConcurrentHashMap<String, CachedToken> tokens = sTokenCache.get(connector);
+        if (null != tokens) {
+            CachedToken cached = tokens.get(key);
+            if (null != cached) {
+                if (cached.validUntil > System.currentTimeMillis()) {
+                    return cached.token;
+                }
+
+                tokens.remove(key, cached);
+            }
         }
 
         if (!connector.isConnected()) {
@@ -116,14 +154,51 @@ public final class TokenHelper {
 
         // 发送请求并等待结果
         ActionDialect result = connector.send(receiver.inject(), actionDialect);
-        if (result.getParamAsInt("code") != AuthStateCode.Ok.code) {
+        if (null == result || result.getParamAsInt("code") != AuthStateCode.Ok.code) {
             return null;
         }
 
-        token = new AuthToken(result.getParamAsJson("token"));
+        AuthToken token = new AuthToken(result.getParamAsJson("token"));
+
+        // 以令牌自身的到期时间为准，并提前失效
+        long now = System.currentTimeMillis();
+        long validUntil = now + TOKEN_TTL;
+        if (token.getExpiry() > 0) {
+            validUntil = Math.min(validUntil, token.getExpiry() - EXPIRY_MARGIN);
+        }
+
+        if (validUntil > now) {
+            synchronized (sTokenCache) {
+                tokens = sTokenCache.get(connector);
+                if (null == tokens) {
+                    tokens = new ConcurrentHashMap<>();
+                    sTokenCache.put(connector, tokens);
+                }
+            }
+            tokens.put(key, new CachedToken(token, validUntil));
+        }
+
         return token;
     }
 
+    /**
+     * 移除缓存的联系人令牌，下次获取时重新请求。例如服务器拒绝令牌时。
+     *
+     * @param connector
+     * @param domain 指定域名称，可以为 {@code null} 。
+     * @param contactId
+     */
+    public static void invalidateAuthToken(Connector connector, String domain, Long contactId) {
+        ConcurrentHashMap<String, CachedToken> tokens = sTokenCache.get(connector);
+        if (null != tokens) {
+            tokens.remove(makeKey(domain, contactId));
+        }
+    }
+
+    private static String makeKey(String domain, Long contactId) {
+        return ((null != domain) ? domain : "") + ":" + contactId;
+    }
+
     /**
      * 注入指定访问令牌。
      *
@@ -148,4 +223,19 @@ public final class TokenHelper {
 
         return new AuthToken(result.getParamAsJson("token"));
     }
+
+    /**
+     * 缓存的令牌。
+     */
+    private static class CachedToken {
+
+        protected final AuthToken token;
+
+        protected final long validUntil;
+
+        protected CachedToken(AuthToken token, long validUntil) {
+            this.token = token;
+            this.validUntil = validUntil;
+        }
+    }
 }
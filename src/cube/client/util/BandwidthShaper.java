@@ -0,0 +1,237 @@
+/*
+ * This source file is part of Cube.
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2023 Cube Team.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cube.client.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 上传带宽整形器。
+ * 使用令牌桶限制上传速率，所有数据同时受全局限速和所属流量类别限速的约束，速率可在运行时调整。
+ */
+public class BandwidthShaper {
+
+    /**
+     * 文件上传流量类别。
+     */
+    public final static String CLASS_FILE = "file";
+
+    /**
+     * 消息附件流量类别。
+     */
+    public final static String CLASS_MESSAGE = "message";
+
+    /**
+     * 机器人脚本流量类别。
+     */
+    public final static String CLASS_ROBOT = "robot";
+
+    /**
+     * 统计当前速率的时间窗口秒数。
+     */
+    private final static int WINDOW_SECONDS = 5;
+
+    private final Bucket global;
+
+    private final ConcurrentMap<String, Bucket> buckets;
+
+    public BandwidthShaper() {
+        this.global = new Bucket();
+        this.buckets = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * 设置全局速率上限。
+     *
+     * @param bytesPerSecond 每秒字节数，小于等于 {@code 0} 表示不限速。
+     */
+    public void setGlobalRate(long bytesPerSecond) {
+        this.global.setRate(bytesPerSecond);
+    }
+
+    /**
+     * 获取全局速率上限。
+     *
+     * @return 返回每秒字节数，{@code 0} 表示不限速。
+     */
+    public long getGlobalRate() {
+        return this.global.getRate();
+    }
+
+    /**
+     * 设置指定流量类别的速率上限。
+     *
+     * @param trafficClass 流量类别。
+     * @param bytesPerSecond 每秒字节数，小于等于 {@code 0} 表示不限速。
+     */
+    public void setRate(String trafficClass, long bytesPerSecond) {
+        this.getBucket(trafficClass).setRate(bytesPerSecond);
+    }
+
+    /**
+     * 获取指定流量类别的速率上限。
+     *
+     * @param trafficClass 流量类别。
+     * @return 返回每秒字节数，{@code 0} 表示不限速。
+     */
+    public long getRate(String trafficClass) {
+        return this.getBucket(trafficClass).getRate();
+    }
+
+    /**
+     * 获取全局当前速率。
+     *
+     * @return 返回最近时间窗口内的平均每秒字节数。
+     */
+    public long getCurrentGlobalRate() {
+        return this.global.getCurrentRate();
+    }
+
+    /**
+     * 获取指定流量类别的当前速率。
+     *
+     * @param trafficClass 流量类别。
+     * @return 返回最近时间窗口内的平均每秒字节数。
+     */
+    public long getCurrentRate(String trafficClass) {
+        return this.getBucket(trafficClass).getCurrentRate();
+    }
+
+    /**
+     * 获取所有流量类别的当前速率。
+     *
+     * @return 返回流量类别对应的当前速率。
+     */
+    public Map<String, Long> getCurrentRates() {
+        Map<String, Long> result = new HashMap<>();
+        for (Map.Entry<String, Bucket> entry : this.buckets.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().getCurrentRate());
+        }
+        return result;
+    }
+
+    /**
+     * 申请发送指定字节数，超过速率上限时阻塞当前线程。
+     *
+     * @param trafficClass 流量类别。
+     * @param bytes 发送的字节数。
+     * @throws InterruptedException
+     */
+    public void acquire(String trafficClass, int bytes) throws InterruptedException {
+        this.getBucket(trafficClass).acquire(bytes);
+        this.global.acquire(bytes);
+    }
+
+    private Bucket getBucket(String trafficClass) {
+        Bucket bucket = this.buckets.get(trafficClass);
+        if (null == bucket) {
+            bucket = new Bucket();
+            Bucket current = this.buckets.putIfAbsent(trafficClass, bucket);
+            if (null != current) {
+                bucket = current;
+            }
+        }
+        return bucket;
+    }
+
+    /**
+     * 令牌桶。桶容量为一秒的令牌数，令牌不足时允许透支，透支的线程等待令牌补足。
+     */
+    private static class Bucket {
+
+        private long rate = 0;
+
+        private double tokens = 0;
+
+        private long lastRefill = System.nanoTime();
+
+        private final long[] windowBytes = new long[WINDOW_SECONDS];
+
+        private final long[] windowSeconds = new long[WINDOW_SECONDS];
+
+        protected synchronized void setRate(long rate) {
+            this.refill();
+            this.rate = Math.max(0, rate);
+            this.tokens = Math.min(this.tokens, this.rate);
+            // 唤醒等待的线程按新速率重新计算
+            this.notifyAll();
+        }
+
+        protected synchronized long getRate() {
+            return this.rate;
+        }
+
+        protected synchronized void acquire(int bytes) throws InterruptedException {
+            this.record(bytes);
+
+            if (this.rate <= 0) {
+                return;
+            }
+
+            this.refill();
+            this.tokens -= bytes;
+
+            while (this.rate > 0 && this.tokens < 0) {
+                long waitMillis = (long) Math.ceil(-this.tokens * 1000 / this.rate);
+                this.wait(Math.max(1, waitMillis));
+                this.refill();
+            }
+        }
+
+        protected synchronized long getCurrentRate() {
+            long second = System.currentTimeMillis() / 1000;
+            long total = 0;
+            for (int i = 0; i < WINDOW_SECONDS; ++i) {
+                // 不计算当前未满的一秒
+                if (this.windowSeconds[i] < second && this.windowSeconds[i] > second - WINDOW_SECONDS) {
+                    total += this.windowBytes[i];
+                }
+            }
+            return total / (WINDOW_SECONDS - 1);
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            if (this.rate > 0) {
+                this.tokens = Math.min(this.rate, this.tokens + (now - this.lastRefill) * this.rate / 1e9);
+            }
+            this.lastRefill = now;
+        }
+
+        private void record(int bytes) {
+            long second = System.currentTimeMillis() / 1000;
+            int index = (int) (second % WINDOW_SECONDS);
+            if (this.windowSeconds[index] != second) {
+                this.windowSeconds[index] = second;
+                this.windowBytes[index] = 0;
+            }
+            this.windowBytes[index] += bytes;
+        }
+    }
+}
@@ -35,10 +35,51 @@ public class MutableFileLabel {
 
     public FileLabel value;
 
+    /**
+     * 是否已得到结果。
+     */
+    private boolean done = false;
+
     public MutableFileLabel() {
     }
 
     public MutableFileLabel(FileLabel value) {
         this.value = value;
     }
+
+    /**
+     * 设置结果并唤醒等待的线程。
+     *
+     * @param value 文件标签，失败时为 {@code null} 。
+     */
+    public synchronized void complete(FileLabel value) {
+        this.value = value;
+        this.done = true;
+        this.notifyAll();
+    }
+
+    /**
+     * 等待结果。在等待之前已得到结果时直接返回。
+     *
+     * @param timeout 超时时长，单位：毫秒。
+     * @return 返回文件标签，失败或超时返回 {@code null} 。
+     */
+    public synchronized FileLabel waitCompleted(long timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (!this.done) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                break;
+            }
+
+            try {
+                this.wait(remaining);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                break;
+            }
+        }
+
+        return this.value;
+    }
 }
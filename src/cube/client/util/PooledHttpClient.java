@@ -0,0 +1,341 @@
+/*
+ * This source file is part of Cube.
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2023 Cube Team.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cube.client.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * 共享的 HTTP 客户端。
+ * 每次请求都完整读取并关闭应答流而不断开连接，使 JDK 的 keep-alive 连接池能够复用到同一服务器的连接。
+ * 支持异步请求，以及按键缓存应答。
+ */
+public class PooledHttpClient {
+
+    /**
+     * 默认缓存的最大应答数量。
+     */
+    public final static int DEFAULT_CACHE_SIZE = 1024;
+
+    private final static AtomicInteger sCount = new AtomicInteger(0);
+
+    private int connectTimeout = 5000;
+
+    private int readTimeout = 10000;
+
+    private final ExecutorService executor;
+
+    /**
+     * 应答缓存，按访问顺序淘汰。
+     */
+    private final Map<String, CachedResponse> cache;
+
+    private final AtomicLong hitCount = new AtomicLong(0);
+
+    private final AtomicLong missCount = new AtomicLong(0);
+
+    public PooledHttpClient() {
+        this(4, DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * 构造函数。
+     *
+     * @param parallelism 异步请求的并发数量。
+     * @param cacheSize 缓存的最大应答数量。
+     */
+    public PooledHttpClient(int parallelism, int cacheSize) {
+        this.executor = Executors.newFixedThreadPool(Math.max(1, parallelism), (runnable) -> {
+            Thread thread = new Thread(runnable, "PooledHttpClient-" + sCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.cache = new LinkedHashMap<String, CachedResponse>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedResponse> eldest) {
+                return this.size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * 设置超时时长。
+     *
+     * @param connectTimeout 连接超时，单位：毫秒。
+     * @param readTimeout 读取超时，单位：毫秒。
+     */
+    public void setTimeout(int connectTimeout, int readTimeout) {
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * 执行 GET 请求。
+     *
+     * @param url 请求地址。
+     * @return 返回应答。
+     * @throws IOException
+     */
+    public Response get(String url) throws IOException {
+        return this.get(url, this.readTimeout);
+    }
+
+    /**
+     * 以指定的读取超时执行 GET 请求。用于服务器需要较长处理时间的请求。
+     *
+     * @param url 请求地址。
+     * @param readTimeout 读取超时，单位：毫秒，为 {@code 0} 时不限制。
+     * @return 返回应答。
+     * @throws IOException
+     */
+    public Response get(String url, int readTimeout) throws IOException {
+        HttpURLConnection connection = this.open(url, readTimeout);
+        int code = this.getResponseCode(connection);
+
+        // 错误应答也需要读完，否则连接不能复用
+        InputStream input = (code >= 400) ? connection.getErrorStream() : connection.getInputStream();
+        byte[] body = (null != input) ? readFully(input) : new byte[0];
+        return new Response(code, body);
+    }
+
+    /**
+     * 执行 GET 请求并将成功应答的数据直接写入文件，数据不在内存中缓存。
+     *
+     * @param url 请求地址。
+     * @param file 指定写入的文件，已存在时覆盖。
+     * @return 返回 HTTP 应答码，只有成功时写入文件。
+     * @throws IOException
+     */
+    public int download(String url, File file) throws IOException {
+        HttpURLConnection connection = this.open(url, this.readTimeout);
+        int code = this.getResponseCode(connection);
+
+        if (code == HttpURLConnection.HTTP_OK) {
+            try (InputStream input = connection.getInputStream()) {
+                Files.copy(input, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        else {
+            // 错误应答也需要读完，否则连接不能复用
+            InputStream input = (code >= 400) ? connection.getErrorStream() : connection.getInputStream();
+            if (null != input) {
+                readFully(input);
+            }
+        }
+        return code;
+    }
+
+    private HttpURLConnection open(String url, int readTimeout) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestProperty("Charset", "UTF-8");
+        connection.setRequestProperty("Connection", "keep-alive");
+        connection.setDoOutput(false);
+        connection.setDoInput(true);
+        connection.setUseCaches(false);
+        connection.setRequestMethod("GET");
+        connection.setConnectTimeout(this.connectTimeout);
+        connection.setReadTimeout(readTimeout);
+        return connection;
+    }
+
+    private int getResponseCode(HttpURLConnection connection) throws IOException {
+        try {
+            return connection.getResponseCode();
+        } catch (IOException e) {
+            // 连接失败时连接不可复用
+            connection.disconnect();
+            throw e;
+        }
+    }
+
+    /**
+     * 执行 GET 请求，缓存有效期内的应答直接返回。只缓存成功的应答。
+     *
+     * @param url 请求地址。
+     * @param cacheKey 缓存键，请求地址包含令牌等易变参数时使用稳定的键。
+     * @param ttl 缓存有效期，单位：毫秒。
+     * @return 返回应答。
+     * @throws IOException
+     */
+    public Response get(String url, String cacheKey, long ttl) throws IOException {
+        return this.get(url, cacheKey, ttl, this.readTimeout);
+    }
+
+    /**
+     * 以指定的读取超时执行 GET 请求，缓存有效期内的应答直接返回。只缓存成功的应答。
+     *
+     * @param url 请求地址。
+     * @param cacheKey 缓存键，请求地址包含令牌等易变参数时使用稳定的键。
+     * @param ttl 缓存有效期，单位：毫秒。
+     * @param readTimeout 读取超时，单位：毫秒，为 {@code 0} 时不限制。
+     * @return 返回应答。
+     * @throws IOException
+     */
+    public Response get(String url, String cacheKey, long ttl, int readTimeout) throws IOException {
+        synchronized (this.cache) {
+            CachedResponse cached = this.cache.get(cacheKey);
+            if (null != cached) {
+                if (cached.expiry > System.currentTimeMillis()) {
+                    this.hitCount.incrementAndGet();
+                    return cached.response;
+                }
+
+                this.cache.remove(cacheKey);
+            }
+        }
+
+        this.missCount.incrementAndGet();
+
+        Response response = this.get(url, readTimeout);
+        if (response.isSuccessful()) {
+            synchronized (this.cache) {
+                this.cache.put(cacheKey, new CachedResponse(response, System.currentTimeMillis() + ttl));
+            }
+        }
+        return response;
+    }
+
+    /**
+     * 异步执行 GET 请求。
+     *
+     * @param url 请求地址。
+     * @return 返回应答的 Future 。
+     */
+    public CompletableFuture<Response> getAsync(String url) {
+        CompletableFuture<Response> future = new CompletableFuture<>();
+        this.executor.execute(() -> {
+            try {
+                future.complete(this.get(url));
+            } catch (IOException | RuntimeException e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * 在请求线程池上异步执行任务。
+     *
+     * @param task 指定任务。
+     * @return 返回任务结果的 Future 。
+     */
+    public <T> CompletableFuture<T> submit(Supplier<T> task) {
+        return CompletableFuture.supplyAsync(task, this.executor);
+    }
+
+    /**
+     * 移除指定键的缓存应答。
+     *
+     * @param cacheKey 缓存键。
+     */
+    public void invalidate(String cacheKey) {
+        synchronized (this.cache) {
+            this.cache.remove(cacheKey);
+        }
+    }
+
+    public long getHitCount() {
+        return this.hitCount.get();
+    }
+
+    public long getMissCount() {
+        return this.missCount.get();
+    }
+
+    /**
+     * 关闭客户端，停止异步请求线程。
+     */
+    public void close() {
+        this.executor.shutdown();
+
+        synchronized (this.cache) {
+            this.cache.clear();
+        }
+    }
+
+    private static byte[] readFully(InputStream input) throws IOException {
+        try (InputStream in = input) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] bytes = new byte[8192];
+            int length = 0;
+            while ((length = in.read(bytes)) > 0) {
+                output.write(bytes, 0, length);
+            }
+            return output.toByteArray();
+        }
+    }
+
+    /**
+     * HTTP 应答。
+     */
+    public static class Response {
+
+        public final int code;
+
+        public final byte[] body;
+
+        protected Response(int code, byte[] body) {
+            this.code = code;
+            this.body = body;
+        }
+
+        public boolean isSuccessful() {
+            return this.code == HttpURLConnection.HTTP_OK;
+        }
+
+        public String getBodyAsString() {
+            return new String(this.body, StandardCharsets.UTF_8);
+        }
+    }
+
+    private static class CachedResponse {
+
+        protected final Response response;
+
+        protected final long expiry;
+
+        protected CachedResponse(Response response, long expiry) {
+            this.response = response;
+            this.expiry = expiry;
+        }
+    }
+}